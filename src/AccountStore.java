@@ -0,0 +1,352 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * In-memory view of clients.txt, sellers.txt and balances.txt. Each file is
+ * kept as a table tagged with the file's stamp. Changes the server commits
+ * itself are recorded as they happen; only a file changed behind our back is
+ * read again on next use.
+ *
+ * The tables are saved to state.bin (at checkpoints and shutdown) with a
+ * hash index per table. On startup the snapshot is memory-mapped and used
+ * in place: lookups probe the index in the mapping, and only changes made
+ * since then live on the heap. Text files whose stamp no longer matches the
+ * snapshot (e.g. ones the log replayed into) are the only ones parsed, and
+ * the snapshot stays in use for them too: the stamp can't tell which lines
+ * changed, so the file is read once, but only lines that differ from the
+ * snapshot are kept on the heap.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class AccountStore {
+    static final File SNAPSHOT_FILE = new File("state.bin");
+    private static final int MAGIC = 0x4D4B5354;
+    private static final int VERSION = 2;
+    private static final String[] FILES = {
+            MarketplaceServerInterface.CLIENTS_FILE,
+            MarketplaceServerInterface.SELLERS_FILE,
+            MarketplaceServerInterface.BALANCES_FILE
+    };
+
+    /**
+     * key -> the rest of the line after the first ':'. Entries come from the
+     * mapped snapshot (base) overlaid with later changes; a null value in the
+     * overlay means the key was removed.
+     */
+    private static class Table {
+        final MappedTable base;
+        final Map<String, String> overlay = new LinkedHashMap<>();
+        long stamp;
+
+        Table(MappedTable base, long stamp) {
+            this.base = base;
+            this.stamp = stamp;
+        }
+
+        String get(String key) {
+            if (overlay.containsKey(key)) return overlay.get(key);
+            return base == null ? null : base.get(key);
+        }
+
+        // in file order: snapshot keys first, then keys added since
+        List<String> keys() {
+            List<String> keys = new ArrayList<>();
+            if (base != null) {
+                for (String key : base.keys()) {
+                    if (!overlay.containsKey(key) || overlay.get(key) != null) keys.add(key);
+                }
+            }
+            for (Map.Entry<String, String> e : overlay.entrySet()) {
+                if (e.getValue() != null && (base == null || base.get(e.getKey()) == null)) {
+                    keys.add(e.getKey());
+                }
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * One table inside the mapped snapshot: an open-addressing index of entry
+     * offsets followed by the entries (int length + UTF-8 bytes, key then value).
+     */
+    private static class MappedTable {
+        private final ByteBuffer buffer;
+        private final int indexPos;
+        private final int capacity;
+        private final int entriesPos;
+        private final int count;
+
+        MappedTable(ByteBuffer buffer, int indexPos, int capacity, int entriesPos, int count) {
+            this.buffer = buffer;
+            this.indexPos = indexPos;
+            this.capacity = capacity;
+            this.entriesPos = entriesPos;
+            this.count = count;
+        }
+
+        String get(String key) {
+            byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+            int i = hash(wanted) & (capacity - 1);
+            while (true) {
+                int offset = buffer.getInt(indexPos + i * 4);
+                if (offset < 0) return null;
+                int pos = entriesPos + offset;
+                int len = buffer.getInt(pos);
+                if (len == wanted.length && sameBytes(pos + 4, wanted)) {
+                    return stringAt(pos + 4 + len);
+                }
+                i = (i + 1) & (capacity - 1);
+            }
+        }
+
+        List<String> keys() {
+            List<String> keys = new ArrayList<>(count);
+            int pos = entriesPos;
+            for (int i = 0; i < count; i++) {
+                keys.add(stringAt(pos));
+                pos += 4 + buffer.getInt(pos);
+                pos += 4 + buffer.getInt(pos);
+            }
+            return keys;
+        }
+
+        private boolean sameBytes(int pos, byte[] wanted) {
+            for (int i = 0; i < wanted.length; i++) {
+                if (buffer.get(pos + i) != wanted[i]) return false;
+            }
+            return true;
+        }
+
+        private String stringAt(int pos) {
+            byte[] bytes = new byte[buffer.getInt(pos)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(pos + 4 + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final Map<String, Table> TABLES = new HashMap<>();
+    private static boolean snapshotRead = false;
+    private static boolean dirty = false;
+
+    private AccountStore() {
+    }
+
+    /**
+     * Loads all tables now (from state.bin where possible) rather than on first use.
+     */
+    public static synchronized void ensureLoaded() throws IOException {
+        for (String file : FILES) {
+            table(file);
+        }
+    }
+
+    public static synchronized boolean exists(String file, String user) throws IOException {
+        return table(file).get(user) != null;
+    }
+
+    /**
+     * @return the stored password, or null if there is no such user
+     */
+    public static synchronized String password(String file, String user) throws IOException {
+        return table(file).get(user);
+    }
+
+    public static synchronized List<String> users(String file) throws IOException {
+        return table(file).keys();
+    }
+
+    public static synchronized double balance(String user) throws IOException {
+        String value = table(MarketplaceServerInterface.BALANCES_FILE).get(user);
+        if (value == null) return 0.0;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+
+    /**
+     * Records a key:value change that was just committed to the file, so the
+     * table stays current without a reparse. Pass null to record a removal.
+     */
+    public static synchronized void applied(String file, String key, String value) throws IOException {
+        Table t = TABLES.get(file);
+        if (!snapshotRead || t == null) {
+            // not loaded yet, so loading reads the change from the file
+            table(file);
+            return;
+        }
+        // checking the stamp first would take our own commit for an outside edit
+        t.overlay.put(key, value);
+        t.stamp = stampOf(file);
+        dirty = true;
+    }
+
+    private static Table table(String file) throws IOException {
+        if (!snapshotRead) {
+            snapshotRead = true;
+            readSnapshot();
+        }
+        Table t = TABLES.get(file);
+        long stamp = stampOf(file);
+        if (t == null || t.stamp != stamp) {
+            t = reparse(file, t == null ? null : t.base, stamp);
+            TABLES.put(file, t);
+            dirty = true;
+        }
+        return t;
+    }
+
+    // reads the file, keeping only the lines that differ from the snapshot base
+    private static Table reparse(String file, MappedTable base, long stamp) throws IOException {
+        Table t = new Table(base, stamp);
+        Map<String, String> values = new LinkedHashMap<>();
+        parse(file, values);
+        if (base == null) {
+            t.overlay.putAll(values);
+            return t;
+        }
+        for (String key : base.keys()) {
+            if (!values.containsKey(key)) t.overlay.put(key, null);
+        }
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            if (!e.getValue().equals(base.get(e.getKey()))) t.overlay.put(e.getKey(), e.getValue());
+        }
+        return t;
+    }
+
+    private static void parse(String file, Map<String, String> values) throws IOException {
+        File f = new File(file);
+        if (!f.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && !values.containsKey(line.substring(0, colon))) {
+                    values.put(line.substring(0, colon), line.substring(colon + 1));
+                }
+            }
+        }
+    }
+
+    // same stamp as CatalogStore's, from a single stat call since it runs on every lookup
+    static long stampOf(String file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(Paths.get(file), BasicFileAttributes.class);
+            return attrs.lastModifiedTime().toMillis() * 31 + attrs.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Layout: magic, version, table count, then per table its file name,
+     * stamp, entry count, index capacity, the index (capacity ints, -1 =
+     * empty) and the entries.
+     */
+    public static void saveSnapshotIfDirty() throws IOException {
+        byte[] bytes;
+        synchronized (AccountStore.class) {
+            if (!dirty) return;
+            ensureLoaded();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(FILES.length);
+            for (String file : FILES) {
+                Table t = TABLES.get(file);
+                List<String> keys = t.keys();
+                int capacity = Integer.highestOneBit(Math.max(keys.size(), 1) * 2 - 1) << 1;
+                int[] index = new int[capacity];
+                Arrays.fill(index, -1);
+                ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                DataOutputStream entryOut = new DataOutputStream(entries);
+                for (String key : keys) {
+                    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+                    int i = hash(k) & (capacity - 1);
+                    while (index[i] >= 0) {
+                        i = (i + 1) & (capacity - 1);
+                    }
+                    index[i] = entryOut.size();
+                    entryOut.writeInt(k.length);
+                    entryOut.write(k);
+                    byte[] v = t.get(key).getBytes(StandardCharsets.UTF_8);
+                    entryOut.writeInt(v.length);
+                    entryOut.write(v);
+                }
+
+                byte[] name = file.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(t.stamp);
+                out.writeInt(keys.size());
+                out.writeInt(capacity);
+                for (int offset : index) {
+                    out.writeInt(offset);
+                }
+                out.writeInt(entries.size());
+                entries.writeTo(out);
+            }
+            out.flush();
+            bytes = buffer.toByteArray();
+            dirty = false;
+        }
+        AtomicFiles.writeBytes(SNAPSHOT_FILE, bytes);
+    }
+
+    /**
+     * Maps state.bin and adopts its tables with their recorded stamps; a
+     * table whose text file changed since is brought up to date on first use.
+     * A missing or unreadable snapshot just means parsing.
+     */
+    private static void readSnapshot() {
+        if (!SNAPSHOT_FILE.exists()) return;
+        try (FileChannel channel = FileChannel.open(SNAPSHOT_FILE.toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return;
+            int tables = in.getInt();
+            for (int i = 0; i < tables; i++) {
+                byte[] name = new byte[in.getInt()];
+                in.get(name);
+                String file = new String(name, StandardCharsets.UTF_8);
+                long stamp = in.getLong();
+                int count = in.getInt();
+                int capacity = in.getInt();
+                int indexPos = in.position();
+                in.position(indexPos + capacity * 4);
+                int entriesLength = in.getInt();
+                int entriesPos = in.position();
+                in.position(entriesPos + entriesLength);
+                TABLES.put(file, new Table(new MappedTable(in, indexPos, capacity, entriesPos, count), stamp));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable " + SNAPSHOT_FILE + ": " + e.getMessage());
+            TABLES.clear();
+        }
+    }
+
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+}
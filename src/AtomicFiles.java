@@ -0,0 +1,59 @@
+package src;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Replaces text files through a private temp file and a rename, so
+ * readers only ever see the old file or the complete new one.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class AtomicFiles {
+    private AtomicFiles() {
+    }
+
+    public static void writeLines(File target, List<String> lines) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        Path temp = Files.createTempFile(dir.toPath(), target.getName() + "_", ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos))) {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+                writer.flush();
+                fos.getFD().sync();
+            }
+            move(temp, target.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public static void writeBytes(File target, byte[] bytes) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        Path temp = Files.createTempFile(dir.toPath(), target.getName() + "_", ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+                fos.write(bytes);
+                fos.getFD().sync();
+            }
+            move(temp, target.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package src;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Client-side prefetch of seller listings. When the seller list comes in,
+ * the first page of products for the sellers the buyer is most likely to
+ * open is fetched over the HTTP endpoint (not the session socket) and the
+ * thumbnails are warmed in the ImageCache, so picking one of those sellers
+ * shows the listing right away. Each round is capped in concurrent
+ * requests, listing bytes and thumbnails so it never crowds out the
+ * buyer's own requests.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class CatalogPrefetcher {
+    public static final int PREFETCH_SELLERS = 5;
+    public static final int MAX_CONCURRENT = 2;
+    public static final long MAX_BYTES_PER_ROUND = 256 * 1024;
+    public static final int MAX_THUMBNAILS_PER_ROUND = 24;
+    public static final long FRESH_MILLIS = 30 * 1000;
+
+    /**
+     * First page of a seller's listing, in the same lines the socket protocol sends.
+     */
+    public static class Listing {
+        public final List<String> products;
+        public final List<String> images;
+        public final boolean hasMore;
+        // catalog version the server's snapshot was at least as new as
+        final long version;
+        final long fetchedAt;
+
+        Listing(List<String> products, List<String> images, boolean hasMore, long version, long fetchedAt) {
+            this.products = products;
+            this.images = images;
+            this.hasMore = hasMore;
+            this.version = version;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final String host;
+    private final ImageCache imageCache;
+    // the client's config file can change how much each round fetches
+    private final int prefetchSellers = ConfigManager.getPositiveInt("prefetch_sellers", PREFETCH_SELLERS);
+    private final long bytesPerRound = ConfigManager.getPositiveInt("prefetch_kb",
+            (int) (MAX_BYTES_PER_ROUND / 1024)) * 1024L;
+    private final int thumbnailsPerRound = ConfigManager.getPositiveInt("prefetch_thumbnails",
+            MAX_THUMBNAILS_PER_ROUND);
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+    // how often each seller was opened this session, to guess who comes next
+    private final Map<String, Integer> opened = new ConcurrentHashMap<>();
+    private final AtomicInteger round = new AtomicInteger();
+    private final ExecutorService fetchers = Executors.newFixedThreadPool(MAX_CONCURRENT, r -> {
+        Thread t = new Thread(r, "catalog-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CatalogPrefetcher(String host, ImageCache imageCache) {
+        this.host = host;
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * Starts a new round for the given seller list (in server order). Fetches
+     * still queued from an older round are dropped.
+     */
+    public void prefetch(List<String> sellers) {
+        int current = round.incrementAndGet();
+        AtomicLong bytesLeft = new AtomicLong(bytesPerRound);
+        AtomicInteger thumbnailsLeft = new AtomicInteger(thumbnailsPerRound);
+        for (String seller : topSellers(sellers)) {
+            if (get(seller) != null) continue;
+            fetchers.execute(() -> {
+                if (round.get() != current || bytesLeft.get() <= 0) return;
+                try {
+                    Listing listing = fetch(seller, bytesLeft);
+                    if (listing == null) return;
+                    listings.put(seller, listing);
+                    for (String image : listing.images) {
+                        if (thumbnailsLeft.getAndDecrement() <= 0) break;
+                        imageCache.prefetch(image);
+                    }
+                } catch (IOException e) {
+                    // prefetch is best effort, the socket path still works
+                }
+            });
+        }
+    }
+
+    List<String> topSellers(List<String> sellers) {
+        List<String> ranked = new ArrayList<>(sellers);
+        // stable sort, so ties keep the server's order
+        ranked.sort((a, b) -> opened.getOrDefault(b, 0) - opened.getOrDefault(a, 0));
+        return ranked.subList(0, Math.min(prefetchSellers, ranked.size()));
+    }
+
+    /**
+     * Returns the prefetched listing if it's still fresh, otherwise null.
+     */
+    public Listing get(String seller) {
+        Listing listing = listings.get(seller);
+        if (listing == null || System.currentTimeMillis() - listing.fetchedAt > FRESH_MILLIS) {
+            return null;
+        }
+        return listing;
+    }
+
+    /**
+     * Drops the seller's listing if it predates a pushed catalog change.
+     */
+    public void invalidate(String seller, long version) {
+        listings.computeIfPresent(seller, (k, listing) -> listing.version < version ? null : listing);
+    }
+
+    public void recordOpened(String seller) {
+        opened.merge(seller, 1, Integer::sum);
+    }
+
+    private Listing fetch(String seller, AtomicLong bytesLeft) throws IOException {
+        URL url = new URL("http://" + host + ":" + MarketplaceServerInterface.HTTP_PORT + "/catalog/"
+                + URLEncoder.encode(seller, StandardCharsets.UTF_8.name()).replace("+", "%20"));
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setConnectTimeout(3000);
+            conn.setReadTimeout(5000);
+            if (conn.getResponseCode() != 200) return null;
+            long version = conn.getHeaderFieldLong("X-Catalog-Version", -1);
+
+            List<String> products = new ArrayList<>();
+            List<String> images = new ArrayList<>();
+            boolean more = false;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (bytesLeft.addAndGet(-(line.length() + 1)) < 0) return null;
+                    if (line.equals("MORE_PRODUCTS")) {
+                        more = true;
+                    } else if (line.startsWith("IMG:")) {
+                        images.add(line.substring(4).trim());
+                    } else if (!line.trim().isEmpty()) {
+                        products.add(line.trim());
+                    }
+                }
+            }
+            return new Listing(Collections.unmodifiableList(products), Collections.unmodifiableList(images), more,
+                    version, System.currentTimeMillis());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    public void shutdown() {
+        fetchers.shutdownNow();
+    }
+}
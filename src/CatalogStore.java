@@ -0,0 +1,121 @@
+package src;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * File layer for products/<seller>.txt. Each seller hashes onto one of a
+ * fixed set of lock stripes, so different sellers almost never contend,
+ * and rewrites go through AtomicFiles so a listing file is never half written.
+ * Adding, removing and deleting listings, and sold stock, go through the
+ * WriteAheadLog.
+ * ProductCatalog holds the seller's lock while it calls in here.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class CatalogStore {
+    private static final int STRIPES = 64;
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private CatalogStore() {
+    }
+
+    static ReentrantLock lockFor(String seller) {
+        return LOCKS[(seller.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * The locks of several sellers, in a fixed order so two callers taking
+     * them can't deadlock.
+     */
+    static List<ReentrantLock> locksFor(Collection<String> sellers) {
+        TreeMap<Integer, ReentrantLock> locks = new TreeMap<>();
+        for (String seller : sellers) {
+            int stripe = (seller.hashCode() & 0x7fffffff) % STRIPES;
+            locks.put(stripe, LOCKS[stripe]);
+        }
+        return new ArrayList<>(locks.values());
+    }
+
+    static File fileFor(String seller) {
+        return new File(MarketplaceServerInterface.PRODUCTS_DIR + seller + ".txt");
+    }
+
+    public static List<String> readLines(String seller) throws IOException {
+        List<String> lines = new ArrayList<>();
+        File file = fileFor(seller);
+        if (!file.exists()) return lines;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    public static void append(String seller, List<String> batch) throws IOException {
+        ReentrantLock lock = lockFor(seller);
+        lock.lock();
+        try {
+            WriteAheadLog.batch().addProducts(fileFor(seller).getPath(), batch).commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the lines of the given product ids from the seller's file.
+     */
+    public static void removeIds(String seller, List<Long> ids) throws IOException {
+        ReentrantLock lock = lockFor(seller);
+        lock.lock();
+        try {
+            WriteAheadLog.batch().dropProducts(fileFor(seller).getPath(), ids).commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void rewrite(String seller, List<String> lines) throws IOException {
+        ReentrantLock lock = lockFor(seller);
+        lock.lock();
+        try {
+            AtomicFiles.writeLines(fileFor(seller), lines);
+            Replication.fileChanged(fileFor(seller));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void deleteSeller(String seller) throws IOException {
+        ReentrantLock lock = lockFor(seller);
+        lock.lock();
+        try {
+            WriteAheadLog.batch().delete(fileFor(seller).getPath()).commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // file length and modification time, so edits made behind our back are noticed
+    static long stampOf(String seller) {
+        File file = fileFor(seller);
+        return file.exists() ? file.lastModified() * 31 + file.length() : -1;
+    }
+}
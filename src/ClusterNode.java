@@ -0,0 +1,585 @@
+package src;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Node-to-node requests for clustered mode. Each request is one
+ * tab-separated line on the peer port, answered with lines ending in END:
+ * SELLERS, SEARCH, PAGE (a page of a seller's listing) and PREPARE / COMMIT
+ * / ABORT for purchases from a seller another node owns. Only the
+ * addresses of the nodes in the ring may connect.
+ *
+ * A cross-node purchase is a two-phase transfer coordinated by the buyer's
+ * node: it holds the price against the buyer's balance and asks the
+ * seller's node to reserve the stock; only if both succeed does it debit
+ * the buyer and tell the seller's node to commit (credit the seller, take
+ * the stock). Each step that has to survive a restart is logged to
+ * cluster.txt through the WriteAheadLog: the buyer's node logs the decision
+ * with the debit and resends the COMMIT until it's acknowledged, even after
+ * a restart, and the seller's node logs the prepared reservation and the
+ * committed txid with the credit, so a COMMIT sent again is applied once.
+ * The seller's node credits the price it checked at PREPARE, and only for
+ * a txid it prepared; the COMMIT itself carries nothing but the txid.
+ * Money held before the decision lives in memory only; a buyer's node that
+ * restarts before debiting just never commits, and the seller's
+ * reservation runs out.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class ClusterNode {
+    private static final String END = "END";
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int READ_TIMEOUT = 5000;
+    private static final long RETRY_SECONDS = 5;
+    // state lines logged before cluster.txt is trimmed to what's still live
+    private static final int COMPACT_LINES = 1000;
+
+    /**
+     * Two-phase state, one tab-separated line per step: kind, time, txid,
+     * then the kind's fields. PREPARED (product id, buyer, seller, price in
+     * cents, note), ABORTED and COMMITTED are written on the seller's node; PENDING (node, seller,
+     * buyer, amount, note) and DELIVERED on the buyer's.
+     */
+    static final String STATE_FILE = "cluster.txt";
+
+    private static class Prepared {
+        // null once the reservation ran out; the sale can still be committed
+        Inventory.Reservation reservation;
+        final long createdAt;
+        final String seller;
+        final String buyer;
+        final long priceCents;
+        final String note;
+
+        Prepared(Inventory.Reservation reservation, long createdAt, String seller, String buyer, long priceCents,
+                 String note) {
+            this.reservation = reservation;
+            this.createdAt = createdAt;
+            this.seller = seller;
+            this.buyer = buyer;
+            this.priceCents = priceCents;
+            this.note = note;
+        }
+    }
+
+    // seller side: txid -> the sale agreed to at PREPARE, until COMMIT or ABORT (or a day)
+    private static final Map<String, Prepared> PREPARED = new ConcurrentHashMap<>();
+    // txid -> when it was committed, so a retried COMMIT is applied once
+    private static final Map<String, Long> COMMITTED = new ConcurrentHashMap<>();
+    // buyer side: user -> money held by purchases in flight, guarded by the balances lock
+    private static final Map<String, Double> HELD = new HashMap<>();
+    private static final AtomicLong NEXT_TX = new AtomicLong();
+    private static final AtomicLong STATE_WRITES = new AtomicLong();
+    private static final ScheduledExecutorService RETRY = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cluster-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static ServerSocket peerSocket;
+
+    private ClusterNode() {
+    }
+
+    public static synchronized void start(int port) throws IOException {
+        if (peerSocket != null) return;
+        peerSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (!peerSocket.isClosed()) {
+                try {
+                    Socket socket = peerSocket.accept();
+                    new Thread(() -> serve(socket), "cluster-peer").start();
+                } catch (IOException e) {
+                    if (!peerSocket.isClosed()) {
+                        System.err.println("Cluster peer accept failed: " + e.getMessage());
+                    }
+                }
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        RETRY.scheduleWithFixedDelay(ClusterNode::sweepPrepared, 1, 1, TimeUnit.MINUTES);
+        System.out.println("Cluster node " + ClusterRing.self() + " listening for peers on port " + port);
+    }
+
+    public static synchronized void stop() {
+        try {
+            if (peerSocket != null) peerSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing peer socket: " + e.getMessage());
+        }
+        peerSocket = null;
+    }
+
+    /**
+     * Sends one request to a peer and returns its reply lines (without END).
+     */
+    public static List<String> call(ClusterRing.Node node, String... fields) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.peerPort()), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(String.join("\t", fields));
+            List<String> reply = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.equals(END)) {
+                reply.add(line);
+            }
+            if (line == null) throw new EOFException("Peer " + node + " closed the connection");
+            return reply;
+        }
+    }
+
+    static void serve(Socket socket) {
+        try (Socket s = socket) {
+            if (!ClusterRing.isNodeAddress(s.getInetAddress())) {
+                System.err.println("Refused peer request from " + s.getInetAddress() + ", not a cluster node");
+                return;
+            }
+            s.setSoTimeout(READ_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            String request = in.readLine();
+            if (request != null) {
+                for (String line : handle(request.split("\t", -1))) {
+                    out.println(line);
+                }
+            }
+            out.println(END);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Cluster peer error: " + e.getMessage());
+        }
+    }
+
+    static List<String> handle(String[] f) throws IOException {
+        List<String> reply = new ArrayList<>();
+        switch (f[0]) {
+            case "SELLERS":
+                reply.addAll(AccountStore.users(MarketplaceServerInterface.SELLERS_FILE));
+                break;
+            case "SEARCH":
+                List<String> sellers = AccountStore.users(MarketplaceServerInterface.SELLERS_FILE);
+                reply.addAll(ProductCatalog.search(sellers.toArray(new String[0]), f[1]));
+                break;
+            case "PAGE":
+                ProductCatalog.Page page = ProductCatalog.browse(f[1], ProductCatalog.Sort.NEWEST, 0, Long.MAX_VALUE,
+                        f[2].equals("-") ? null : f[2], ServerConfig.getInt("page_size"));
+                reply.add(page.nextCursor == null ? "-" : page.nextCursor);
+                for (int slot : page.slots) {
+                    Product p = ProductCatalog.get(ProductCatalog.idOf(slot));
+                    if (p != null) reply.add(p.toFileLine());
+                }
+                break;
+            case "PREPARE":
+                reply.add(prepare(f[1], f[2], Long.parseLong(f[3]), Long.parseLong(f[4]), f[5]));
+                break;
+            case "COMMIT":
+                reply.add(commitSale(f[1]));
+                break;
+            case "ABORT":
+                Prepared p = PREPARED.remove(f[1]);
+                if (p != null) {
+                    if (p.reservation != null) Inventory.release(p.reservation);
+                    logState(stateLine("ABORTED", f[1]));
+                }
+                reply.add("OK");
+                break;
+            default:
+                reply.add("ERROR\tUnknown request " + f[0]);
+        }
+        return reply;
+    }
+
+    /**
+     * Sellers on every node: this node's first, then each peer's in ring order.
+     * Peers that can't be reached are left out.
+     */
+    public static List<String> allSellers(String[] local) {
+        List<String> sellers = new ArrayList<>(Arrays.asList(local));
+        for (ClusterRing.Node peer : ClusterRing.peers()) {
+            try {
+                sellers.addAll(call(peer, "SELLERS"));
+            } catch (IOException e) {
+                System.err.println("Cluster node " + peer + " unreachable: " + e.getMessage());
+            }
+        }
+        return sellers;
+    }
+
+    public static List<String> searchPeers(String query) {
+        List<String> results = new ArrayList<>();
+        for (ClusterRing.Node peer : ClusterRing.peers()) {
+            try {
+                results.addAll(call(peer, "SEARCH", query));
+            } catch (IOException e) {
+                System.err.println("Cluster node " + peer + " unreachable: " + e.getMessage());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * A page of a seller's listing from the node that owns them.
+     *
+     * @return the next cursor (or null) followed by the products
+     */
+    public static List<Product> page(String seller, String cursor, String[] nextCursor) throws IOException {
+        List<String> reply = call(ClusterRing.owner(seller), "PAGE", seller, cursor == null ? "-" : cursor);
+        List<Product> products = new ArrayList<>();
+        nextCursor[0] = reply.isEmpty() || reply.get(0).equals("-") ? null : reply.get(0);
+        for (int i = 1; i < reply.size(); i++) {
+            Product p = Product.parse(seller, reply.get(i));
+            if (p != null) products.add(p);
+        }
+        return products;
+    }
+
+    /**
+     * Buys one unit of a product a peer owns, for a buyer this node owns.
+     *
+     * @return null on success, otherwise why it failed
+     */
+    public static String purchase(String buyer, Product product, String requestLine) throws IOException {
+        String txid = ClusterRing.self() + "-" + System.currentTimeMillis() + "-" + NEXT_TX.incrementAndGet();
+        ClusterRing.Node sellerNode = ClusterRing.owner(product.getSeller());
+        double amount = product.getPrice();
+        String note = "Purchase: " + product.getName();
+
+        // phase one: hold the money here, reserve the stock there
+        if (!hold(buyer, amount)) {
+            return "Payment failed: Insufficient funds.";
+        }
+        List<String> vote;
+        try {
+            vote = call(sellerNode, "PREPARE", txid, product.getSeller(), Long.toString(product.getId()),
+                    Long.toString(product.getPriceCents()), buyer);
+        } catch (IOException e) {
+            release(buyer, amount);
+            abort(sellerNode, txid);
+            return "The seller's server is unavailable, please try again later.";
+        }
+        if (vote.isEmpty() || !vote.get(0).startsWith("PREPARED")) {
+            release(buyer, amount);
+            return vote.isEmpty() ? "Purchase failed." : vote.get(0).substring(vote.get(0).indexOf('\t') + 1);
+        }
+
+        // phase two: the debit here is the decision, logged with the COMMIT still to send
+        String line = MarketplaceServer.ClientHandler.transactionLine(buyer, product.getSeller(), amount, note);
+        String pending = stateLine("PENDING", txid, sellerNode.toString(), product.getSeller(), buyer,
+                Double.toString(amount), note);
+        synchronized (MarketplaceServerInterface.BALANCES_FILE.intern()) {
+            release(buyer, amount);
+            applyLocal(buyer, -amount, line, requestLine, new ArrayList<>(), pending);
+        }
+        MarketplaceServer.ClientHandler.publishTransaction(buyer, product.getSeller(), amount, note);
+        deliverCommit(sellerNode, txid);
+        return null;
+    }
+
+    private static void deliverCommit(ClusterRing.Node node, String txid) {
+        List<String> reply;
+        try {
+            reply = call(node, "COMMIT", txid);
+        } catch (IOException e) {
+            System.err.println("Commit of " + txid + " to " + node + " failed, retrying: " + e.getMessage());
+            RETRY.schedule(() -> deliverCommit(node, txid), RETRY_SECONDS, TimeUnit.SECONDS);
+            return;
+        }
+        if (reply.isEmpty() || !reply.get(0).equals("OK")) {
+            // left pending, so the next restart tries again
+            System.err.println("Commit of " + txid + " refused by " + node + ": " + reply);
+            return;
+        }
+        try {
+            logState(stateLine("DELIVERED", txid));
+        } catch (IOException e) {
+            // the COMMIT goes out again after a restart, and the seller's node ignores it
+            System.err.println("Could not log delivery of " + txid + ": " + e.getMessage());
+        }
+    }
+
+    private static void abort(ClusterRing.Node node, String txid) {
+        try {
+            call(node, "ABORT", txid);
+        } catch (IOException e) {
+            // the seller's reservation expires on its own
+        }
+    }
+
+    static String prepare(String txid, String seller, long productId, long priceCents, String buyer)
+            throws IOException {
+        Product product = ProductCatalog.get(productId);
+        if (product == null || !product.getSeller().equals(seller)) {
+            return "NO\tThat product is no longer available.";
+        }
+        if (product.getPriceCents() != priceCents) {
+            return "NO\tThe price of '" + product.getName() + "' changed, please look again.";
+        }
+        Inventory.Reservation r = Inventory.reserve(product, buyer, 1);
+        if (r == null) {
+            return "NO\tSorry, '" + product.getName() + "' is sold out.";
+        }
+        String note = "Purchase: " + product.getName();
+        try {
+            logState(stateLine("PREPARED", txid, Long.toString(productId), buyer, seller, Long.toString(priceCents),
+                    note));
+        } catch (IOException e) {
+            Inventory.release(r);
+            throw e;
+        }
+        PREPARED.put(txid, new Prepared(r, System.currentTimeMillis(), seller, buyer, priceCents, note));
+        return "PREPARED\t" + product.getName();
+    }
+
+    /**
+     * Credits the seller with the price agreed at PREPARE, for a purchase the
+     * buyer's node already paid for. Idempotent, since the buyer's node
+     * retries until it hears back. The buyer has been charged, so the sale
+     * stands even if the reservation expired and the stock is gone by now,
+     * but a txid this node never prepared is refused.
+     *
+     * @return OK, or an ERROR line
+     */
+    static String commitSale(String txid) throws IOException {
+        if (COMMITTED.putIfAbsent(txid, System.currentTimeMillis()) != null) return "OK";
+        Prepared p = PREPARED.remove(txid);
+        if (p == null) {
+            COMMITTED.remove(txid);
+            return "ERROR\tNo prepared sale " + txid;
+        }
+        String seller = p.seller;
+        String buyer = p.buyer;
+        double amount = p.priceCents / 100.0;
+        String note = p.note;
+        List<Inventory.Reservation> sold = new ArrayList<>();
+        if (p.reservation != null && Inventory.commit(p.reservation)) {
+            sold.add(p.reservation);
+        } else {
+            System.err.println("Stock for " + txid + " was gone at commit; the sale stands");
+        }
+        String line = MarketplaceServer.ClientHandler.transactionLine(buyer, seller, amount, note);
+        try {
+            applyLocal(seller, amount, line, null, sold, stateLine("COMMITTED", txid));
+        } catch (IOException e) {
+            // nothing was credited, so the retried COMMIT has to go through
+            if (!sold.isEmpty()) {
+                Inventory.refund(p.reservation);
+            }
+            PREPARED.put(txid, p);
+            COMMITTED.remove(txid);
+            throw e;
+        }
+        MarketplaceServer.ClientHandler.publishTransaction(buyer, seller, amount, note);
+        return "OK";
+    }
+
+    /**
+     * Changes a local user's balance and logs the ledger line with it.
+     */
+    static void applyLocal(String user, double delta, String ledgerLine) throws IOException {
+        applyLocal(user, delta, ledgerLine, null);
+    }
+
+    /**
+     * As above, also recording the client's request id (a RequestLog line) if there is one.
+     */
+    static void applyLocal(String user, double delta, String ledgerLine, String requestLine) throws IOException {
+        applyLocal(user, delta, ledgerLine, requestLine, new ArrayList<>(), null);
+    }
+
+    /**
+     * As above, also writing the stock of committed reservations sold by user
+     * and a two-phase state line, if there is one.
+     */
+    static void applyLocal(String user, double delta, String ledgerLine, String requestLine,
+                           List<Inventory.Reservation> sold, String stateLine) throws IOException {
+        double updated;
+        synchronized (MarketplaceServerInterface.BALANCES_FILE.intern()) {
+            updated = AccountStore.balance(user) + delta;
+            WriteAheadLog.Batch batch = WriteAheadLog.batch()
+                    .set(MarketplaceServerInterface.BALANCES_FILE, user, String.valueOf(updated))
+                    .append(MarketplaceServerInterface.TRANSACTIONS_FILE, ledgerLine);
+            if (requestLine != null) {
+                batch.append(MarketplaceServerInterface.REQUESTS_FILE, requestLine);
+            }
+            if (stateLine != null) {
+                batch.append(STATE_FILE, stateLine);
+            }
+            Set<String> sellers = Inventory.sold(batch, sold);
+            if (sellers.isEmpty()) {
+                batch.commit();
+            } else {
+                ProductCatalog.commitSale(batch, sellers, sold);
+            }
+            if (stateLine != null) STATE_WRITES.incrementAndGet();
+            AccountStore.applied(MarketplaceServerInterface.BALANCES_FILE, user, String.valueOf(updated));
+            SalesAnalytics.recorded(Collections.singletonList(ledgerLine));
+        }
+        MarketplaceEvents.publishTo(user, "BALANCE " + String.format("%.2f", updated));
+    }
+
+    static boolean hold(String user, double amount) throws IOException {
+        synchronized (MarketplaceServerInterface.BALANCES_FILE.intern()) {
+            if (AccountStore.balance(user) - held(user) < amount) return false;
+            HELD.merge(user, amount, Double::sum);
+            return true;
+        }
+    }
+
+    static void release(String user, double amount) {
+        synchronized (MarketplaceServerInterface.BALANCES_FILE.intern()) {
+            HELD.computeIfPresent(user, (k, v) -> v - amount > 0.000001 ? v - amount : null);
+        }
+    }
+
+    /**
+     * Money held by cross-node purchases in flight; local payments can't spend it.
+     */
+    public static double held(String user) {
+        synchronized (MarketplaceServerInterface.BALANCES_FILE.intern()) {
+            return HELD.getOrDefault(user, 0.0);
+        }
+    }
+
+    // stock held for coordinators that never came back, and old prepared sales and commit ids
+    private static void sweepPrepared() {
+        long now = System.currentTimeMillis();
+        for (Prepared p : PREPARED.values()) {
+            if (p.reservation != null && p.createdAt < now - 2 * Inventory.RESERVATION_MILLIS) {
+                Inventory.release(p.reservation);
+                p.reservation = null;
+            }
+        }
+        PREPARED.values().removeIf(p -> p.createdAt < now - TimeUnit.DAYS.toMillis(1));
+        COMMITTED.values().removeIf(at -> at < now - TimeUnit.DAYS.toMillis(1));
+        if (STATE_WRITES.get() >= COMPACT_LINES) {
+            try {
+                compact(now);
+            } catch (IOException e) {
+                System.err.println("Could not trim " + STATE_FILE + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Picks up two-phase purchases a restart interrupted: COMMITs this node
+     * decided on but never got acknowledged are sent again, committed txids
+     * are remembered so a COMMIT sent again is ignored, and sales prepared
+     * for another node's buyer are remembered, with their stock reserved
+     * again if it hasn't run out. Run once at startup, after the catalog is loaded.
+     */
+    public static void recover() throws IOException {
+        for (String line : compact(System.currentTimeMillis())) {
+            String[] f = line.split("\t", 8);
+            long at = Long.parseLong(f[1]);
+            switch (f[0]) {
+                case "COMMITTED":
+                    COMMITTED.put(f[2], at);
+                    break;
+                case "PREPARED":
+                    if (f.length < 8) break;
+                    Product product = ProductCatalog.get(Long.parseLong(f[3]));
+                    Inventory.Reservation r = product == null || at < System.currentTimeMillis()
+                            - 2 * Inventory.RESERVATION_MILLIS ? null : Inventory.reserve(product, f[4], 1);
+                    PREPARED.put(f[2], new Prepared(r, at, f[5], f[4], Long.parseLong(f[6]), f[7]));
+                    break;
+                case "PENDING":
+                    ClusterRing.Node node = ClusterRing.Node.parse(f[3]);
+                    RETRY.execute(() -> deliverCommit(node, f[2]));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // rewrites cluster.txt with the lines still live; no append can land while the log lock is held
+    private static List<String> compact(long now) throws IOException {
+        synchronized (WriteAheadLog.lock()) {
+            WriteAheadLog.awaitApplied();
+            List<String> live = live(readState(), now);
+            WriteAheadLog.batch().rewrite(STATE_FILE, live).commit();
+            STATE_WRITES.set(0);
+            return live;
+        }
+    }
+
+    // drops finished steps, and prepared sales and commit ids older than a day
+    static List<String> live(List<String> lines, long now) {
+        Map<String, String> prepared = new LinkedHashMap<>();
+        Map<String, String> committed = new LinkedHashMap<>();
+        Map<String, String> pending = new LinkedHashMap<>();
+        for (String line : lines) {
+            String[] f = line.split("\t", 4);
+            if (f.length < 3) continue;
+            long at = Long.parseLong(f[1]);
+            switch (f[0]) {
+                case "PREPARED":
+                    if (at >= now - TimeUnit.DAYS.toMillis(1)) prepared.put(f[2], line);
+                    break;
+                case "ABORTED":
+                    prepared.remove(f[2]);
+                    break;
+                case "COMMITTED":
+                    prepared.remove(f[2]);
+                    if (at >= now - TimeUnit.DAYS.toMillis(1)) committed.put(f[2], line);
+                    break;
+                case "PENDING":
+                    pending.put(f[2], line);
+                    break;
+                case "DELIVERED":
+                    pending.remove(f[2]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        List<String> live = new ArrayList<>(committed.values());
+        live.addAll(prepared.values());
+        live.addAll(pending.values());
+        return live;
+    }
+
+    private static List<String> readState() throws IOException {
+        List<String> lines = new ArrayList<>();
+        File file = new File(STATE_FILE);
+        if (!file.exists()) return lines;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static String stateLine(String kind, String... fields) {
+        return kind + "\t" + System.currentTimeMillis() + "\t" + String.join("\t", fields);
+    }
+
+    private static void logState(String line) throws IOException {
+        WriteAheadLog.batch().append(STATE_FILE, line).commit();
+        STATE_WRITES.incrementAndGet();
+    }
+}
@@ -0,0 +1,189 @@
+package src;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Consistent-hash ring deciding which node owns a user (their account,
+ * balance, transactions and, for sellers, their catalog). Each node gets
+ * VIRTUAL_NODES points on the ring so keys spread evenly, and adding a node
+ * only moves the keys that land next to its points. With no cluster
+ * configured the ring holds just this node and everything is local.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class ClusterRing {
+    public static final int VIRTUAL_NODES = 128;
+
+    /**
+     * A node, known by the host and session port clients connect to. Its
+     * image and HTTP servers sit on the next two ports and the peer port
+     * after that.
+     */
+    public static class Node {
+        public final String host;
+        public final int port;
+
+        public Node(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public int imagePort() {
+            return port + 1;
+        }
+
+        public int httpPort() {
+            return port + 2;
+        }
+
+        public int peerPort() {
+            return port + 3;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Node && ((Node) o).host.equals(host) && ((Node) o).port == port;
+        }
+
+        @Override
+        public int hashCode() {
+            return host.hashCode() * 31 + port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+
+        static Node parse(String address) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Expected host:port, got " + address);
+            return new Node(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+        }
+    }
+
+    private static final TreeMap<Integer, Node> RING = new TreeMap<>();
+    private static final List<Node> NODES = new ArrayList<>();
+    private static Node self = new Node("localhost", MarketplaceServerInterface.SERVER_PORT);
+
+    private ClusterRing() {
+    }
+
+    /**
+     * Sets up the ring from a comma separated host:port list. This node is
+     * the entry given as selfAddress or, without one, the entry with this
+     * port whose host is an address of this machine. An empty list means a
+     * single node.
+     *
+     * @throws IllegalArgumentException if the list doesn't include this node
+     */
+    public static synchronized void configure(int port, String nodeList, String selfAddress) {
+        RING.clear();
+        NODES.clear();
+        self = null;
+        Node wanted = selfAddress == null ? null : Node.parse(selfAddress);
+        if (nodeList != null) {
+            for (String address : nodeList.split(",")) {
+                if (address.trim().isEmpty()) continue;
+                Node node = Node.parse(address);
+                NODES.add(node);
+                if (self == null && (wanted != null ? node.equals(wanted) : node.port == port && isLocalHost(node.host))) {
+                    self = node;
+                }
+            }
+        }
+        if (self == null && !NODES.isEmpty()) {
+            throw new IllegalArgumentException("This server isn't in the node list " + nodeList
+                    + "; start it with --self host:port");
+        }
+        if (self == null) {
+            self = new Node("localhost", port);
+            NODES.add(self);
+        }
+        for (Node node : NODES) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                RING.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public static synchronized Node self() {
+        return self;
+    }
+
+    public static synchronized List<Node> nodes() {
+        return Collections.unmodifiableList(new ArrayList<>(NODES));
+    }
+
+    public static synchronized List<Node> peers() {
+        List<Node> peers = new ArrayList<>(NODES);
+        peers.remove(self);
+        return peers;
+    }
+
+    public static synchronized boolean isClustered() {
+        return NODES.size() > 1;
+    }
+
+    /**
+     * @return the node that owns the user
+     */
+    public static synchronized Node owner(String user) {
+        if (RING.isEmpty()) return self;
+        Map.Entry<Integer, Node> e = RING.ceilingEntry(hash(user));
+        return e != null ? e.getValue() : RING.firstEntry().getValue();
+    }
+
+    public static boolean isLocal(String user) {
+        return owner(user).equals(self());
+    }
+
+    /**
+     * @return true if the address is one of the cluster's nodes
+     */
+    public static boolean isNodeAddress(InetAddress address) {
+        for (Node node : nodes()) {
+            try {
+                for (InetAddress a : InetAddress.getAllByName(node.host)) {
+                    if (a.equals(address)) return true;
+                }
+            } catch (IOException e) {
+                // a node whose name doesn't resolve can't be this one
+            }
+        }
+        return false;
+    }
+
+    // a name for one of this machine's own addresses
+    static boolean isLocalHost(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // first four bytes of MD5, so the points don't depend on String.hashCode
+    static int hash(String key) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ((d[0] & 0xFF) << 24) | ((d[1] & 0xFF) << 16) | ((d[2] & 0xFF) << 8) | (d[3] & 0xFF);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -63,4 +63,17 @@ public class ConfigManager {
     public static boolean getStayLoggedIn() {
         return Boolean.parseBoolean(properties.getProperty("stay_logged_in", "false"));
     }
+
+    /**
+     * A positive whole number set by hand in the file, like a cache size,
+     * or defaultValue if it isn't there or isn't one.
+     */
+    public static int getPositiveInt(String key, int defaultValue) {
+        try {
+            int value = Integer.parseInt(properties.getProperty(key, "").trim());
+            return value > 0 ? value : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
 } 
@@ -0,0 +1,189 @@
+package src;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Client-side product image cache. Decoded, scaled images are kept in a
+ * small in-memory LRU (image_cache_entries in the client's config file); the raw bytes live in temp_images/ next to a .etag
+ * file holding the server's validator. Fetching, decoding and scaling all
+ * happen on a background pool and callbacks are delivered on the EDT.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class ImageCache {
+    public static final int MAX_MEMORY_ENTRIES = 64;
+    public static final int THUMB_SIZE = 200;
+    private static final int LOADER_THREADS = 4;
+
+    private final File diskDir;
+    private final String host;
+    private final int maxEntries = ConfigManager.getPositiveInt("image_cache_entries", MAX_MEMORY_ENTRIES);
+    private final Map<String, Image> memory = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    // names checked against the server this session, so each image is revalidated at most once
+    private final Set<String> validated = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<Consumer<Image>>> pending = new HashMap<>();
+    private final ExecutorService loaders = Executors.newFixedThreadPool(LOADER_THREADS, r -> {
+        Thread t = new Thread(r, "image-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ImageCache(File diskDir, String host) {
+        this.diskDir = diskDir;
+        this.host = host;
+        diskDir.mkdirs();
+    }
+
+    public synchronized Image getIfPresent(String name) {
+        return memory.get(name);
+    }
+
+    /**
+     * Starts loading an image nobody is waiting for yet.
+     */
+    public void prefetch(String name) {
+        load(name, null);
+    }
+
+    /**
+     * Calls back on the EDT with the scaled image, or null if it can't be loaded.
+     * A second request for an image already in flight just joins the first one.
+     */
+    public void load(String name, Consumer<Image> callback) {
+        synchronized (this) {
+            Image cached = memory.get(name);
+            if (cached != null) {
+                if (callback != null) SwingUtilities.invokeLater(() -> callback.accept(cached));
+                return;
+            }
+            List<Consumer<Image>> waiters = pending.get(name);
+            if (waiters != null) {
+                if (callback != null) waiters.add(callback);
+                return;
+            }
+            waiters = new ArrayList<>();
+            if (callback != null) waiters.add(callback);
+            pending.put(name, waiters);
+        }
+        loaders.submit(() -> {
+            Image image = null;
+            try {
+                image = fetchAndDecode(name);
+            } catch (IOException e) {
+                System.err.println("Could not load image " + name + ": " + e.getMessage());
+            }
+            List<Consumer<Image>> waiters;
+            synchronized (this) {
+                if (image != null) memory.put(name, image);
+                waiters = pending.remove(name);
+            }
+            Image result = image;
+            for (Consumer<Image> w : waiters) {
+                SwingUtilities.invokeLater(() -> w.accept(result));
+            }
+        });
+    }
+
+    private Image fetchAndDecode(String name) throws IOException {
+        if (!ImageTransfer.isSafeName(name)) return null;
+        File file = new File(diskDir, name);
+        File etagFile = new File(diskDir, name + ".etag");
+
+        if (!file.isFile() || !validated.contains(name)) {
+            String etag = file.isFile() && etagFile.isFile() ? new String(Files.readAllBytes(etagFile.toPath())).trim() : null;
+            if (!fetchOverHttp(name, file, etagFile, etag) && !file.isFile()) {
+                // HTTP endpoint unavailable, fall back to the image socket
+                if (!ImageTransfer.download(host, MarketplaceServerInterface.IMAGE_PORT, name, file)) return null;
+            }
+            validated.add(name);
+        }
+
+        BufferedImage original = ImageIO.read(file);
+        return original == null ? null : scale(original);
+    }
+
+    /**
+     * Conditional GET against the HTTP image endpoint.
+     *
+     * @return true if the disk copy is now current
+     */
+    private boolean fetchOverHttp(String name, File file, File etagFile, String etag) {
+        HttpURLConnection conn = null;
+        try {
+            URL url = new URL("http://" + host + ":" + MarketplaceServerInterface.HTTP_PORT + "/images/"
+                    + URLEncoder.encode(name, StandardCharsets.UTF_8.name()).replace("+", "%20"));
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(30000);
+            if (etag != null) conn.setRequestProperty("If-None-Match", etag);
+
+            int code = conn.getResponseCode();
+            if (code == 304) return true;
+            if (code != 200) return false;
+
+            File temp = new File(diskDir, name + ".part");
+            try (InputStream in = conn.getInputStream();
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                byte[] buffer = new byte[ImageTransfer.CHUNK_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            AtomicFiles.move(temp.toPath(), file.toPath());
+            String newEtag = conn.getHeaderField("ETag");
+            if (newEtag != null) {
+                Files.write(etagFile.toPath(), newEtag.getBytes());
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (conn != null) conn.disconnect();
+        }
+    }
+
+    private static Image scale(BufferedImage original) {
+        double ratio = Math.min((double) THUMB_SIZE / original.getWidth(), (double) THUMB_SIZE / original.getHeight());
+        int w = Math.max(1, (int) Math.round(original.getWidth() * ratio));
+        int h = Math.max(1, (int) Math.round(original.getHeight() * ratio));
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(original, 0, 0, w, h, null);
+        g.dispose();
+        return scaled;
+    }
+
+    public void shutdown() {
+        loaders.shutdownNow();
+    }
+}
@@ -0,0 +1,296 @@
+package src;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Framed image protocol for the image port, used by both the server and the GUI.
+ *
+ * Upload: client sends UTF "UPLOAD:name", long size, long crc32 of the file.
+ * Server answers "OFFSET" + long (bytes it already has, for resuming) or "ERROR:why".
+ * Client then sends chunks as int length, bytes, long crc32 of the chunk; the
+ * server answers "ACK" or "RETRY" with the offset to continue from. When all
+ * bytes are in, the staged file is checked against the whole-file crc and
+ * renamed into IMAGE_DIR, and the server answers "UPLOAD_SUCCESS".
+ * In a cluster the node a client uploads to first copies the image to every
+ * other node the same way, with "COPY:name" in place of "UPLOAD:name", so
+ * whichever node owns the seller, and every node serving it, has the image.
+ *
+ * Download: client sends UTF name, server answers long size (0 = not found) and the bytes.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class ImageTransfer {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final long MAX_IMAGE_BYTES = 20L * 1024 * 1024;
+    public static final int MAX_ATTEMPTS = 5;
+    static final String STAGING_DIR = MarketplaceServerInterface.IMAGE_DIR + ".staging/";
+    private static final long STALE_STAGING_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final Set<String> ACTIVE_UPLOADS = ConcurrentHashMap.newKeySet();
+
+    private ImageTransfer() {
+    }
+
+    public static boolean isSafeName(String name) {
+        return name != null && !name.isEmpty() && name.length() <= 200 && !name.startsWith(".")
+                && !name.contains("/") && !name.contains("\\") && !name.contains("..") && !name.contains(":");
+    }
+
+    public static long crcOf(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Drops staged uploads nobody came back to finish.
+     */
+    public static void cleanStaging() {
+        File[] staged = new File(STAGING_DIR).listFiles();
+        if (staged == null) return;
+        long cutoff = System.currentTimeMillis() - STALE_STAGING_MILLIS;
+        for (File f : staged) {
+            if (f.lastModified() < cutoff) {
+                f.delete();
+            }
+        }
+    }
+
+    // ---- server side ----
+
+    public static void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        String command = in.readUTF();
+        if (command.startsWith("UPLOAD:")) {
+            receive(command.substring(7).trim(), in, out, true);
+        } else if (command.startsWith("COPY:")) {
+            receive(command.substring(5).trim(), in, out, false);
+        } else {
+            send(command.trim(), out);
+        }
+        out.flush();
+    }
+
+    static void receive(String name, DataInputStream in, DataOutputStream out, boolean fromClient)
+            throws IOException {
+        long size = in.readLong();
+        long expectedCrc = in.readLong();
+        if (!isSafeName(name)) {
+            out.writeUTF("ERROR:invalid image name");
+            return;
+        }
+        long maxBytes = ServerConfig.getLong("max_image_mb") * 1024 * 1024;
+        if (size <= 0 || size > maxBytes) {
+            out.writeUTF("ERROR:image must be between 1 byte and " + maxBytes + " bytes");
+            return;
+        }
+        if (!ACTIVE_UPLOADS.add(name)) {
+            out.writeUTF("ERROR:upload already in progress");
+            return;
+        }
+
+        try {
+            new File(STAGING_DIR).mkdirs();
+            File part = new File(STAGING_DIR + name + ".part");
+            File meta = new File(STAGING_DIR + name + ".meta");
+            String header = size + ":" + expectedCrc;
+
+            long offset = 0;
+            if (part.exists() && meta.exists() && part.length() <= size
+                    && header.equals(new String(Files.readAllBytes(meta.toPath())).trim())) {
+                offset = part.length();
+            } else {
+                Files.write(meta.toPath(), header.getBytes());
+            }
+            out.writeUTF("OFFSET");
+            out.writeLong(offset);
+            out.flush();
+
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                raf.setLength(offset);
+                raf.seek(offset);
+                byte[] buffer = new byte[CHUNK_SIZE];
+                CRC32 crc = new CRC32();
+                while (offset < size) {
+                    int len = in.readInt();
+                    if (len <= 0 || len > CHUNK_SIZE || offset + len > size) {
+                        out.writeUTF("ERROR:bad chunk length " + len);
+                        return;
+                    }
+                    in.readFully(buffer, 0, len);
+                    long sum = in.readLong();
+                    crc.reset();
+                    crc.update(buffer, 0, len);
+                    if (crc.getValue() != sum) {
+                        out.writeUTF("RETRY");
+                    } else {
+                        raf.write(buffer, 0, len);
+                        offset += len;
+                        out.writeUTF("ACK");
+                    }
+                    out.writeLong(offset);
+                    out.flush();
+                }
+                raf.getFD().sync();
+            }
+
+            if (crcOf(part) != expectedCrc) {
+                part.delete();
+                meta.delete();
+                out.writeUTF("ERROR:checksum mismatch, please upload again");
+                return;
+            }
+            File image = new File(MarketplaceServerInterface.IMAGE_DIR + name);
+            AtomicFiles.move(part.toPath(), image.toPath());
+            meta.delete();
+            Replication.fileChanged(image);
+            out.writeUTF(fromClient && ClusterRing.isClustered() ? copyToPeers(image, name) : "UPLOAD_SUCCESS");
+        } finally {
+            ACTIVE_UPLOADS.remove(name);
+        }
+    }
+
+    private static String copyToPeers(File image, String name) {
+        for (ClusterRing.Node peer : ClusterRing.peers()) {
+            try {
+                String reply = transfer(peer.host, peer.imagePort(), image, "COPY:" + name);
+                if (!reply.equals("UPLOAD_SUCCESS")) return reply;
+            } catch (IOException e) {
+                System.err.println("Could not copy image " + name + " to " + peer + ": " + e.getMessage());
+                return "ERROR:the image could not be copied to every server, please upload again";
+            }
+        }
+        return "UPLOAD_SUCCESS";
+    }
+
+    static void send(String name, DataOutputStream out) throws IOException {
+        File imageFile = new File(MarketplaceServerInterface.IMAGE_DIR + name);
+        if (!isSafeName(name) || !imageFile.isFile()) {
+            out.writeLong(0);
+            return;
+        }
+        try (InputStream fis = new BufferedInputStream(new FileInputStream(imageFile))) {
+            out.writeLong(imageFile.length());
+            byte[] buffer = new byte[Math.max(1, ServerConfig.getInt("image_buffer_kb")) * 1024];
+            int read;
+            while ((read = fis.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    // ---- client side ----
+
+    /**
+     * Uploads a file, resuming where the server left off if the connection drops.
+     *
+     * @return the server's final reply, "UPLOAD_SUCCESS" or "ERROR:..."
+     */
+    public static String upload(String host, int port, File file, String targetName) throws IOException {
+        return transfer(host, port, file, "UPLOAD:" + targetName);
+    }
+
+    private static String transfer(String host, int port, File file, String command) throws IOException {
+        long size = file.length();
+        long fileCrc = crcOf(file);
+        IOException lastError = null;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(500L << attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            try (Socket socket = new Socket(host, port);
+                 RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                socket.setSoTimeout(30000);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                out.writeUTF(command);
+                out.writeLong(size);
+                out.writeLong(fileCrc);
+                out.flush();
+
+                String reply = in.readUTF();
+                if (!reply.equals("OFFSET")) return reply;
+                long offset = in.readLong();
+
+                byte[] buffer = new byte[CHUNK_SIZE];
+                CRC32 crc = new CRC32();
+                while (offset < size) {
+                    int len = (int) Math.min(CHUNK_SIZE, size - offset);
+                    raf.seek(offset);
+                    raf.readFully(buffer, 0, len);
+                    crc.reset();
+                    crc.update(buffer, 0, len);
+
+                    out.writeInt(len);
+                    out.write(buffer, 0, len);
+                    out.writeLong(crc.getValue());
+                    out.flush();
+
+                    String ack = in.readUTF();
+                    if (ack.startsWith("ERROR:")) return ack;
+                    offset = in.readLong();
+                }
+                return in.readUTF();
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError != null ? lastError : new IOException("upload interrupted");
+    }
+
+    /**
+     * Downloads an image into target, going through a temp file so a dropped
+     * connection never leaves a truncated image behind.
+     *
+     * @return false if the server doesn't have the image
+     */
+    public static boolean download(String host, int port, String name, File target) throws IOException {
+        File temp = new File(target.getPath() + ".part");
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(30000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeUTF(name);
+            out.flush();
+
+            long size = in.readLong();
+            if (size <= 0) return false;
+
+            try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(temp))) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                long remaining = size;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) throw new EOFException("image truncated");
+                    fos.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            AtomicFiles.move(temp.toPath(), target.toPath());
+            return true;
+        } finally {
+            temp.delete();
+        }
+    }
+}
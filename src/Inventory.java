@@ -0,0 +1,154 @@
+package src;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Stock reservations for purchases. Reserving takes the stock right away
+ * (a CAS on the catalog, no locks), so thousands of buyers racing for the
+ * last units of one product can never oversell it. A reservation that is
+ * neither committed nor released in time hands its stock back by itself.
+ * Committing only claims the stock in memory; it reaches the seller's file
+ * through sold(), in the same logged batch as the payment, so a crash
+ * can't keep the payment and lose the sale or the other way round.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class Inventory {
+    public static final long RESERVATION_MILLIS = 2 * 60 * 1000;
+
+    private static final AtomicLong NEXT_RESERVATION = new AtomicLong(1);
+    private static final Map<Long, Reservation> RESERVATIONS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inventory-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        SWEEPER.scheduleWithFixedDelay(() -> sweep(System.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static class Reservation {
+        private final long id;
+        private final long productId;
+        private final String seller;
+        private final String buyer;
+        private final int quantity;
+        private final long expiresAt;
+        // unlimited stock has nothing to write back
+        private final boolean limited;
+
+        Reservation(long id, long productId, String seller, String buyer, int quantity, long expiresAt,
+                    boolean limited) {
+            this.id = id;
+            this.productId = productId;
+            this.seller = seller;
+            this.buyer = buyer;
+            this.quantity = quantity;
+            this.expiresAt = expiresAt;
+            this.limited = limited;
+        }
+
+        public long getProductId() {
+            return productId;
+        }
+
+        public String getSeller() {
+            return seller;
+        }
+
+        public String getBuyer() {
+            return buyer;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+    }
+
+    private Inventory() {
+    }
+
+    /**
+     * Takes stock for the buyer and holds it for RESERVATION_MILLIS.
+     *
+     * @return the reservation, or null if there isn't enough stock
+     */
+    public static Reservation reserve(Product product, String buyer, int quantity) {
+        if (!ProductCatalog.takeStock(product.getId(), quantity)) {
+            return null;
+        }
+        Reservation r = new Reservation(NEXT_RESERVATION.getAndIncrement(), product.getId(), product.getSeller(),
+                buyer, quantity, System.currentTimeMillis() + RESERVATION_MILLIS, product.getStock() != Product.UNLIMITED);
+        RESERVATIONS.put(r.id, r);
+        return r;
+    }
+
+    /**
+     * Turns the reservation into a sale. If it already expired, tries to take
+     * the stock again so a slow confirm still succeeds while stock lasts.
+     * The sale still has to be logged with sold().
+     *
+     * @return false if the stock is no longer available
+     */
+    public static boolean commit(Reservation r) {
+        return RESERVATIONS.remove(r.id, r) || ProductCatalog.takeStock(r.productId, r.quantity);
+    }
+
+    /**
+     * Adds the stock of committed reservations to a batch; commit it with
+     * ProductCatalog.commitSale with the sellers returned.
+     *
+     * @return the sellers whose files the batch rewrites
+     */
+    public static Set<String> sold(WriteAheadLog.Batch batch, List<Reservation> sold) {
+        Set<String> sellers = new LinkedHashSet<>();
+        for (Reservation r : sold) {
+            if (!r.limited) continue;
+            batch.sold(CatalogStore.fileFor(r.seller).getPath(), r.productId, r.quantity);
+            sellers.add(r.seller);
+        }
+        return sellers;
+    }
+
+    public static void release(Reservation r) {
+        if (RESERVATIONS.remove(r.id, r)) {
+            ProductCatalog.returnStock(r.productId, r.quantity);
+        }
+    }
+
+    /**
+     * Puts stock back after a committed sale fell through before it was
+     * logged, e.g. the payment failed.
+     */
+    public static void refund(Reservation r) {
+        ProductCatalog.returnStock(r.productId, r.quantity);
+    }
+
+    public static int activeReservations() {
+        return RESERVATIONS.size();
+    }
+
+    // hands back the stock of reservations expired by now
+    static void sweep(long now) {
+        Iterator<Reservation> it = RESERVATIONS.values().iterator();
+        while (it.hasNext()) {
+            Reservation r = it.next();
+            if (r.expiresAt <= now && RESERVATIONS.remove(r.id, r)) {
+                ProductCatalog.returnStock(r.productId, r.quantity);
+            }
+        }
+    }
+}
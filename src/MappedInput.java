@@ -0,0 +1,58 @@
+package src;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Reads a binary snapshot through a memory mapping instead of the read
+ * syscalls of a FileInputStream; the OS pages the file in as it's used.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class MappedInput extends InputStream {
+    private final ByteBuffer buffer;
+
+    private MappedInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public static DataInputStream open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return new DataInputStream(new MappedInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        }
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int k = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -7,8 +7,17 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 /**
  * MarketplaceClientGUI.java
  * A GUI-based client application for
@@ -24,14 +33,21 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
     private String currentChatPartner = "";
     private boolean isClientRole = false;
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private volatile Socket socket;
+    private volatile BufferedReader in;
+    private volatile PrintWriter out;
+
+    // socket writes happen in order on one thread; uploads and file work on their own pool
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(r -> daemon(r, "client-io"));
+    private final ExecutorService transferExecutor = Executors.newCachedThreadPool(r -> daemon(r, "client-transfer"));
+    private final Deque<String> pendingResponses = new ArrayDeque<>();
+    private boolean dispatching = false;
 
     private CardLayout cardLayout;
     private JPanel mainPanel;
     private JTextArea outputArea;
     private JComboBox<String> actionComboBox;
+    private JLabel balanceLabel;
     private JButton submitButton;
 
     private JTextField usernameField;
@@ -50,11 +66,62 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
     private boolean collectingSellers = false;
     private boolean collectingProducts = false;
     private List<String> productBuffer = new ArrayList<>();
+    private boolean productsHaveMore = false;
+    private final ImageCache imageCache = new ImageCache(new File("temp_images"), "localhost");
+    private final CatalogPrefetcher prefetcher = new CatalogPrefetcher("localhost", imageCache);
+    private List<String> instantListing = null;
+    private static final String PUSH_PREFIX = "PUSH:";
+    private static final String BUSY_PREFIX = "BUSY: ";
+    // last BUSY answer, so a login refused for load isn't shown as bad credentials
+    private String busyMessage = null;
+    // menus by role, kept across logins so an unchanged menu isn't sent again
+    private final Map<String, List<String>> cachedMenus = new HashMap<>();
+    private final Map<String, String> cachedMenuVersions = new HashMap<>();
+    private String menuRole = null;
+    private String menuVersion = null;
+    private List<String> deferredReplies = new ArrayList<>();
+    private static final String NEXT_PAGE_OPTION = "Next page >>";
+    private boolean collectingExport = false;
+    private List<String> exportBuffer = new ArrayList<>();
+
+    private static final long RECONNECT_FIRST_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30 * 1000L;
+    private static final String REQUEST_ID_PREFIX = "REQUEST_ID:";
+    private static final String REQUEST_STATUS_PREFIX = "REQUEST_STATUS:";
+    // buyer choices that can move money, and choices safe to send again after a reconnect
+    private static final List<String> PAYING_CHOICES = Arrays.asList("1", "4", "9", "11");
+    private static final List<String> CLIENT_REPEATABLE = Arrays.asList("5", "6", "10");
+    private static final List<String> SELLER_REPEATABLE = Arrays.asList("3", "5", "6", "11");
+    // kept in memory for the session, so a dropped connection can log back in
+    private volatile String loginPassword = null;
+    private volatile String loginRole = null;
+    // set from losing the connection until the session is back at the menu
+    private boolean resuming = false;
+    // the menu choice being handled, cleared when the server asks for the next one
+    private String inFlightChoice = null;
+    private String inFlightRequestId = null;
 
     public MarketplaceClientGUI() {
         initializeGUI();
-        connectToServer();
-        startResponseHandler();
+        ioExecutor.execute(this::connectWithRetry);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Queues a line for the server; never blocks the caller.
+     */
+    private void send(String line) {
+        ioExecutor.execute(() -> {
+            PrintWriter w = out;
+            if (w != null) {
+                w.println(line);
+            }
+        });
     }
 
     public void initializeGUI() {
@@ -271,6 +338,8 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
         actionPanel.add(submitButton, BorderLayout.EAST);
 
         topPanel.add(actionPanel, BorderLayout.CENTER);
+        balanceLabel = new JLabel(" ");
+        topPanel.add(balanceLabel, BorderLayout.EAST);
 
         submitButton.addActionListener(e -> handleActionSelection());
         actionComboBox.addActionListener(e -> submitButton.setEnabled(actionComboBox.getSelectedItem() != null));
@@ -289,7 +358,7 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
         inputSendButton.addActionListener(e -> {
             String input = inputField.getText().trim();
             if (!input.isEmpty()) {
-                out.println(input);
+                send(input);
                 appendToOutput("You: " + input);
                 inputField.setText("");
 
@@ -328,7 +397,7 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
         sendButton.addActionListener(e -> {
             String msg = chatInputField.getText().trim();
             if (!msg.isEmpty()) {
-                out.println(msg);
+                send(msg);
                 chatArea.append("You: " + msg + "\n");
                 chatInputField.setText("");
             }
@@ -352,10 +421,12 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
         }
 
         currentUser = username;
-        out.println("1");
-        out.println(username);
-        out.println(password);
-        out.println(role.equals("Seller") ? "1" : "2");
+        loginPassword = password;
+        loginRole = role.equals("Seller") ? "1" : "2";
+        send("1");
+        send(username);
+        send(password);
+        send(loginRole);
 
         usernameField.setText("");
         passwordField.setText("");
@@ -370,10 +441,10 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
             return;
         }
 
-        out.println("2");
-        out.println(username);
-        out.println(password);
-        out.println(role.equals("Seller") ? "1" : "2");
+        send("2");
+        send(username);
+        send(password);
+        send(role.equals("Seller") ? "1" : "2");
 
         usernameField.setText("");
         passwordField.setText("");
@@ -388,7 +459,14 @@ public class MarketplaceClientGUI extends JFrame implements MarketplaceClientInt
 
         String choice = selected.split("\\.")[0].trim();
         appendToOutput("Selected: " + selected);
-        out.println(choice);
+        inFlightChoice = choice;
+        inFlightRequestId = null;
+        if (isClientRole && PAYING_CHOICES.contains(choice)) {
+            // lets us ask, after a reconnect, whether this went through instead of paying twice
+            inFlightRequestId = UUID.randomUUID().toString();
+            send(REQUEST_ID_PREFIX + inFlightRequestId);
+        }
+        send(choice);
         actionComboBox.setSelectedIndex(-1);
         submitButton.setEnabled(false);
     }
@@ -418,11 +496,15 @@ private void handleLogout() {
     int confirm = JOptionPane.showConfirmDialog(this, "Are you sure you want to logout?", "Confirm Logout", JOptionPane.YES_NO_OPTION);
     if (confirm == JOptionPane.YES_OPTION) {
         if (out != null) {
-            out.println("8");
+            send("8");
         }
 
         currentUser = null;
+        loginPassword = null;
+        loginRole = null;
+        busyMessage = null;
         actionComboBox.removeAllItems();
+        balanceLabel.setText(" ");
         outputArea.setText("Welcome to the Marketplace!\n");
         cardLayout.show(mainPanel, "login");
 
@@ -430,6 +512,33 @@ private void handleLogout() {
 }
 
     private void handleServerResponse(String response) {
+        if (response.startsWith(PUSH_PREFIX)) {
+            handlePush(response.substring(PUSH_PREFIX.length()));
+            return;
+        }
+
+        if (response.startsWith(BUSY_PREFIX)) {
+            busyMessage = response.substring(BUSY_PREFIX.length());
+            appendToOutput(busyMessage);
+            return;
+        }
+
+        if (response.startsWith("MENU_UNCHANGED:")) {
+            String[] parts = response.split(":");
+            List<String> cached = cachedMenus.get(parts[1]);
+            if (cached != null && parts[2].equals(cachedMenuVersions.get(parts[1]))) {
+                collectingMenu = false;
+                actionComboBox.removeAllItems();
+                for (String item : cached) {
+                    actionComboBox.addItem(item);
+                }
+                appendToOutput("Menu received. Select an option from the dropdown.");
+            } else {
+                send("MENU");
+            }
+            return;
+        }
+
         if (response.startsWith("ROLE:")) {
             isClientRole = response.trim().equals("ROLE:CLIENT");
             appendToOutput("[DEBUG] Role assigned by server: " + (isClientRole ? "Client" : "Seller"));
@@ -438,6 +547,8 @@ private void handleLogout() {
 
         if (response.contains("=== CLIENT MENU ===") || response.contains("=== SELLER MENU ===")) {
             collectingMenu = true;
+            menuRole = response.contains("CLIENT") ? "CLIENT" : "SELLER";
+            menuVersion = null;
             actionComboBox.removeAllItems();
             return;
         }
@@ -445,13 +556,27 @@ private void handleLogout() {
         switch (response) {
             case "LOGIN_SUCCESS_CLIENT":
             case "LOGIN_SUCCESS_SELLER":
+                busyMessage = null;
                 collectingMenu = true;
                 actionComboBox.removeAllItems();
                 cardLayout.show(mainPanel, "main");
                 appendToOutput("Login successful. Waiting for menu...");
                 return;
             case "LOGIN_FAILED":
-                JOptionPane.showMessageDialog(this, "Invalid login credentials.", "Login Failed", JOptionPane.ERROR_MESSAGE);
+                if (resuming) {
+                    resuming = false;
+                    cardLayout.show(mainPanel, "login");
+                }
+                loginPassword = null;
+                loginRole = null;
+                String busy = busyMessage;
+                if (busy != null) {
+                    promptLater(() -> JOptionPane.showMessageDialog(this, busy, "Server Busy", JOptionPane.WARNING_MESSAGE));
+                } else {
+                    promptLater(() -> JOptionPane.showMessageDialog(this, "Invalid login credentials.", "Login Failed",
+                            JOptionPane.ERROR_MESSAGE));
+                }
+                busyMessage = null;
                 return;
             case "AVAILABLE_SELLERS":
                 collectingSellers = true;
@@ -460,23 +585,47 @@ private void handleLogout() {
             case "END_SELLERS":
                 collectingSellers = false;
                 if (isClientRole) {
+                    prefetcher.prefetch(sellerNames(sellerBuffer));
                     showSellerSelectionPopup(sellerBuffer);
                 }
                 return;
             case "SELLER_PRODUCTS":
                 collectingProducts = true;
+                productsHaveMore = false;
                 productBuffer.clear();
                 return;
             case "END_PRODUCTS":
                 collectingProducts = false;
-                showProductSelectionPopup(productBuffer);
+                if (instantListing != null) {
+                    List<String> shown = instantListing;
+                    instantListing = null;
+                    if (shown.equals(productBuffer)) {
+                        // the user already chose from the prefetched copy of this page
+                        for (String reply : deferredReplies) {
+                            send(reply);
+                        }
+                        return;
+                    }
+                    appendToOutput("The listing changed while you were choosing, please pick again.");
+                }
+                showProductSelectionPopup(productBuffer, this::send);
                 return;
         }
 
         if (collectingMenu) {
             if (response.equalsIgnoreCase("END_MENU") || response.equalsIgnoreCase("===END_MENU===")) {
                 collectingMenu = false;
+                if (menuRole != null && menuVersion != null) {
+                    List<String> items = new ArrayList<>();
+                    for (int i = 0; i < actionComboBox.getItemCount(); i++) {
+                        items.add(actionComboBox.getItemAt(i));
+                    }
+                    cachedMenus.put(menuRole, items);
+                    cachedMenuVersions.put(menuRole, menuVersion);
+                }
                 appendToOutput("Menu received. Select an option from the dropdown.");
+            } else if (response.startsWith("MENU_VERSION:")) {
+                menuVersion = response.substring("MENU_VERSION:".length()).trim();
             } else if (response.matches("^\\d+\\.\\s+.*")) {
                 if (((DefaultComboBoxModel<String>) actionComboBox.getModel()).getIndexOf(response.trim()) == -1) {
                     actionComboBox.addItem(response.trim());
@@ -493,7 +642,15 @@ private void handleLogout() {
         }
 
         if (collectingProducts) {
-            if (response.startsWith("IMG:")) return;
+            if (response.startsWith("IMG:")) {
+                // warm the cache so the image is ready by the time a product is opened
+                imageCache.prefetch(response.substring(4).trim());
+                return;
+            }
+            if (response.equals("MORE_PRODUCTS")) {
+                productsHaveMore = true;
+                return;
+            }
 
             if (response.matches("^\\d+\\.\\s+.+")) {
                 String trimmed = response.trim();
@@ -505,6 +662,29 @@ private void handleLogout() {
             return;
         }
 
+        if (response.startsWith("Please select your choice")) {
+            appendToOutput(response);
+            if (resuming) {
+                resuming = false;
+                resumeInFlight();
+            } else {
+                inFlightChoice = null;
+                inFlightRequestId = null;
+            }
+            return;
+        }
+
+        if (response.startsWith("REQUEST_DONE:")) {
+            String summary = response.substring(response.indexOf(' ') + 1);
+            appendToOutput("Your interrupted request went through: " + summary);
+            return;
+        }
+
+        if (response.startsWith("REQUEST_UNKNOWN:")) {
+            appendToOutput("Your interrupted request didn't go through and nothing was charged. Please try again.");
+            return;
+        }
+
         if (response.startsWith("Confirm purchase of")) {
             awaitingInput = true;
             appendToOutput(response);
@@ -541,22 +721,34 @@ private void handleLogout() {
             currentChatPartner = "Client";
         }
 
-        if (response.startsWith("SEND_IMAGE_NOW:")) {
-            String targetFileName = response.substring("SEND_IMAGE_NOW:".length()).trim();
+        if (response.equals("=== PRODUCT EXPORT ===")) {
+            collectingExport = true;
+            exportBuffer.clear();
+            return;
+        }
 
-            JFileChooser chooser = new JFileChooser();
-            int result = chooser.showOpenDialog(this);
-            if (result == JFileChooser.APPROVE_OPTION) {
-                File selectedFile = chooser.getSelectedFile();
-                sendImageToServer(selectedFile, targetFileName);
-                out.println("IMAGE_UPLOADED");
+        if (collectingExport) {
+            if (response.equals("===END OF EXPORT===")) {
+                collectingExport = false;
+                List<String> export = new ArrayList<>(exportBuffer);
+                promptLater(() -> saveProductExport(export));
             } else {
-                appendToOutput("Image selection cancelled.");
-                out.println("IMAGE_UPLOAD_CANCELLED");
+                exportBuffer.add(response);
             }
             return;
         }
 
+        if (response.equals("SEND_PRODUCT_CSV")) {
+            promptLater(this::chooseProductCsv);
+            return;
+        }
+
+        if (response.startsWith("SEND_IMAGE_NOW:")) {
+            String targetFileName = response.substring("SEND_IMAGE_NOW:".length()).trim();
+            promptLater(() -> chooseImageToUpload(targetFileName));
+            return;
+        }
+
 
 
 
@@ -565,28 +757,99 @@ private void handleLogout() {
 
         appendToOutput(response);
     }
-    private void sendImageToServer(File file, String targetFileName) {
-        try (
-                Socket imageSocket = new Socket("localhost", 8882);
-                DataOutputStream dos = new DataOutputStream(imageSocket.getOutputStream());
-                FileInputStream fis = new FileInputStream(file)
-        ) {
-            dos.writeUTF("UPLOAD:" + targetFileName);
-            dos.writeLong(file.length());
-
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
+    /**
+     * Opens a dialog once the server line being handled is done, so lines that
+     * arrive while the user is choosing (pushes, replies) are still handled.
+     */
+    private void promptLater(Runnable prompt) {
+        SwingUtilities.invokeLater(prompt);
+    }
+
+    private void chooseProductCsv() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Select product CSV (name,price,image)");
+        File csv = null;
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            csv = chooser.getSelectedFile();
+        } else {
+            appendToOutput("Bulk import cancelled.");
+        }
+        File selectedCsv = csv;
+        // streamed from the I/O thread so the lines stay ahead of END_IMPORT
+        ioExecutor.execute(() -> {
+            if (selectedCsv != null) {
+                sendProductCsv(selectedCsv);
             }
-            dos.flush();
+            out.println("END_IMPORT");
+        });
+    }
 
-            DataInputStream dis = new DataInputStream(imageSocket.getInputStream());
-            String response = dis.readUTF();
-            appendToOutput("Server upload response: " + response);
+    private void chooseImageToUpload(String targetFileName) {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File selectedFile = chooser.getSelectedFile();
+            appendToOutput("Uploading " + selectedFile.getName() + "...");
+            transferExecutor.execute(() -> {
+                if (sendImageToServer(selectedFile, targetFileName)) {
+                    send("IMAGE_UPLOADED");
+                } else {
+                    send("IMAGE_UPLOAD_FAILED");
+                }
+            });
+        } else {
+            appendToOutput("Image selection cancelled.");
+            send("IMAGE_UPLOAD_CANCELLED");
+        }
+    }
 
+    // runs on the I/O thread
+    private void sendProductCsv(File file) {
+        int sent = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.trim().equals("END_IMPORT")) {
+                    out.println(line);
+                    sent++;
+                }
+            }
+            appendToOutput("Sent " + sent + " product lines from " + file.getName());
+        } catch (IOException ex) {
+            appendToOutput("Could not read CSV: " + ex.getMessage());
+        }
+    }
+
+    private void saveProductExport(List<String> lines) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Save product export");
+        chooser.setSelectedFile(new File("products_export.csv"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            appendToOutput("Export not saved.");
+            return;
+        }
+        File target = chooser.getSelectedFile();
+        List<String> copy = new ArrayList<>(lines);
+        transferExecutor.execute(() -> {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(target))) {
+                for (String line : copy) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+                appendToOutput("Export saved to " + target.getAbsolutePath());
+            } catch (IOException ex) {
+                appendToOutput("Could not save export: " + ex.getMessage());
+            }
+        });
+    }
+
+    private boolean sendImageToServer(File file, String targetFileName) {
+        try {
+            String response = ImageTransfer.upload("localhost", MarketplaceServerInterface.IMAGE_PORT, file, targetFileName);
+            appendToOutput("Server upload response: " + response);
+            return "UPLOAD_SUCCESS".equals(response);
         } catch (IOException ex) {
             appendToOutput("Image upload failed: " + ex.getMessage());
+            return false;
         }
     }
 
@@ -696,7 +959,7 @@ private void handleLogout() {
         sendBtn.addActionListener(e -> {
             String msg = messageField.getText().trim();
             if (!msg.isEmpty()) {
-                out.println(msg);
+                send(msg);
                 chatArea.append((isClient ? "You (Client): " : "You (Seller): ") + msg + "\n");
                 messageField.setText("");
             }
@@ -712,6 +975,59 @@ private void handleLogout() {
         chatDialog.setVisible(true);
     }
 
+    /**
+     * Applies a change the server pushed: "BALANCE <amount>",
+     * "TRANSACTION <from|to|amount|note>", or a catalog event like
+     * "CATALOG <version> ADD <id> <name,price,image,seller>",
+     * "CATALOG <version> REMOVE <id> <seller>" or "CATALOG <version> CLEAR <seller>".
+     */
+    private void handlePush(String event) {
+        if (event.startsWith("BALANCE ")) {
+            balanceLabel.setText("Balance: $" + event.substring(8).trim());
+            return;
+        }
+        if (event.startsWith("TRANSACTION ")) {
+            // from|to|amount|note; only money coming in is news, outgoing payments are already reported
+            String[] t = event.substring(12).split("\\|", 4);
+            if (t.length == 4 && t[1].equals(currentUser) && !t[0].equals(currentUser) && !t[0].equals("SYSTEM")) {
+                appendToOutput("Received $" + t[2] + " from " + t[0] + " (" + t[3] + ")");
+            }
+            return;
+        }
+
+        String[] parts = event.split(" ", 5);
+        if (parts[0].equals("CATALOG") && parts.length >= 4) {
+            long version;
+            try {
+                version = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            String seller;
+            if (parts[2].equals("CLEAR")) {
+                seller = event.substring(event.indexOf(" CLEAR ") + 7);
+            } else if (parts.length == 5) {
+                seller = parts[2].equals("ADD") ? parts[4].split(",", 4)[3] : parts[4];
+            } else {
+                return;
+            }
+            prefetcher.invalidate(seller, version);
+
+            if (parts[2].equals("ADD") && isClientRole && currentUser != null) {
+                String[] fields = parts[4].split(",", 4);
+                appendToOutput("New listing from " + seller + ": " + fields[0] + " ($" + fields[1] + ")");
+            }
+        }
+    }
+
+    private static List<String> sellerNames(List<String> sellerLines) {
+        List<String> names = new ArrayList<>();
+        for (String line : sellerLines) {
+            names.add(line.replaceFirst("^\\d+\\.\\s*", "").trim());
+        }
+        return names;
+    }
+
     private void showSellerSelectionPopup(List<String> sellers) {
         if (sellers.isEmpty()) {
             appendToOutput("No sellers available.");
@@ -730,17 +1046,33 @@ private void handleLogout() {
 
         if (selectedSeller != null && !selectedSeller.trim().isEmpty()) {
             int selectedIndex = sellers.indexOf(selectedSeller);
-            out.println((selectedIndex + 1));
+            send(String.valueOf(selectedIndex + 1));
             appendToOutput("Selected seller: " + selectedSeller);
+
+            String name = selectedSeller.replaceFirst("^\\d+\\.\\s*", "").trim();
+            prefetcher.recordOpened(name);
+            CatalogPrefetcher.Listing listing = prefetcher.get(name);
+            if (listing != null && !listing.products.isEmpty()) {
+                // show the prefetched page now; the answers wait until the server's page confirms it
+                instantListing = listing.products;
+                deferredReplies = new ArrayList<>();
+                productsHaveMore = listing.hasMore;
+                showProductSelectionPopup(listing.products, deferredReplies::add);
+            }
         } else {
             appendToOutput("No seller selected.");
-            out.println("0");
+            send("0");
         }
     }
 
-    private void showProductSelectionPopup(List<String> products) {
+    /**
+     * Lets the user pick from a product page. Answers for the server go to
+     * reply, which either sends them or holds them until the real page arrives.
+     */
+    private void showProductSelectionPopup(List<String> products, Consumer<String> reply) {
         if (products.isEmpty()) {
             appendToOutput("No products available.");
+            reply.accept("0");
             return;
         }
 
@@ -757,16 +1089,26 @@ private void handleLogout() {
             return;
         }
 
+        List<String> options = new ArrayList<>(validProducts);
+        if (productsHaveMore) {
+            options.add(NEXT_PAGE_OPTION);
+        }
+
         String selectedProduct = (String) JOptionPane.showInputDialog(
                 this,
                 "Select a product to view details:",
                 "Available Products",
                 JOptionPane.PLAIN_MESSAGE,
                 null,
-                validProducts.toArray(),
-                validProducts.get(0)
+                options.toArray(),
+                options.get(0)
         );
 
+        if (NEXT_PAGE_OPTION.equals(selectedProduct)) {
+            reply.accept("next");
+            return;
+        }
+
         if (selectedProduct != null && !selectedProduct.trim().isEmpty()) {
 
             String cleanProduct = selectedProduct.replaceFirst("^\\d+\\.\\s*", "").trim();
@@ -794,119 +1136,189 @@ private void handleLogout() {
 
                     if (confirmBuy == JOptionPane.YES_OPTION) {
                         int selectedIndex = validProducts.indexOf(selectedProduct) + 1;
-                        out.println(selectedIndex);
-                        out.println("yes");
+                        reply.accept(String.valueOf(selectedIndex));
+                        reply.accept("yes");
                         appendToOutput("You confirmed purchase: " + parts[0]);
                     } else {
-                        out.println("0");
+                        reply.accept("0");
                         appendToOutput("Purchase cancelled.");
                     }
 
 
                 } else {
                     appendToOutput("Product view cancelled.");
-                    out.println("0");
+                    reply.accept("0");
                 }
             } else {
                 appendToOutput("Invalid product format: " + cleanProduct);
-                out.println("0");
+                reply.accept("0");
             }
         } else {
             appendToOutput("No product selected.");
-            out.println("0");
+            reply.accept("0");
         }
     }
 
 
     private void showProductImage(String imageFileName) {
-        try {
-            File tempDir = new File("temp_images");
-            if (!tempDir.exists()) tempDir.mkdirs();
-
-            File imgFile = new File(tempDir, imageFileName);
-
-            try (
-                    Socket imageSocket = new Socket("localhost", 8889);
-                    DataOutputStream dos = new DataOutputStream(imageSocket.getOutputStream());
-                    DataInputStream dis = new DataInputStream(imageSocket.getInputStream());
-                    FileOutputStream fos = new FileOutputStream(imgFile)
-            ) {
-                dos.writeUTF(imageFileName);
-
-                long fileSize = dis.readLong();
-                if (fileSize <= 0) {
-                    appendToOutput("Image not found on server.");
-                    JOptionPane.showMessageDialog(this, "Image not found on server.", "Image Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
+        JLabel imgLabel = new JLabel("Loading image...", SwingConstants.CENTER);
+        imgLabel.setPreferredSize(new Dimension(ImageCache.THUMB_SIZE, ImageCache.THUMB_SIZE));
 
-                byte[] buffer = new byte[4096];
-                long remaining = fileSize;
-                while (remaining > 0) {
-                    int read = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
-                    if (read == -1) break;
-                    fos.write(buffer, 0, read);
-                    remaining -= read;
+        Image cached = imageCache.getIfPresent(imageFileName);
+        if (cached != null) {
+            imgLabel.setText(null);
+            imgLabel.setIcon(new ImageIcon(cached));
+        } else {
+            imageCache.load(imageFileName, image -> {
+                if (image == null) {
+                    imgLabel.setText("Image could not be loaded.");
+                    appendToOutput("Error fetching image: " + imageFileName);
+                } else {
+                    imgLabel.setText(null);
+                    imgLabel.setIcon(new ImageIcon(image));
                 }
-            }
-
-            if (!imgFile.exists() || imgFile.length() == 0) {
-                appendToOutput("Downloaded image file is empty.");
-                JOptionPane.showMessageDialog(this, "Image could not be loaded.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+            });
+        }
+        JOptionPane.showMessageDialog(this, imgLabel, "Product Image", JOptionPane.PLAIN_MESSAGE);
+    }
 
-            ImageIcon icon = new ImageIcon(imgFile.getAbsolutePath());
-            if (icon.getIconWidth() == -1) {
-                appendToOutput("Image decoding failed.");
-                JOptionPane.showMessageDialog(this, "Corrupted image file.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
 
-            Image scaled = icon.getImage().getScaledInstance(200, 200, Image.SCALE_SMOOTH);
-            JLabel imgLabel = new JLabel(new ImageIcon(scaled));
-            JOptionPane.showMessageDialog(this, imgLabel, "Product Image", JOptionPane.PLAIN_MESSAGE);
 
-        } catch (IOException ex) {
-            appendToOutput("Error fetching image: " + ex.getMessage());
+    // runs on the I/O thread
+    private boolean connectToServer() {
+        try {
+            Socket newSocket = new Socket("localhost", MarketplaceServerInterface.SERVER_PORT);
+            in = new BufferedReader(new InputStreamReader(newSocket.getInputStream()));
+            out = new PrintWriter(newSocket.getOutputStream(), true);
+            socket = newSocket;
+            return true;
+        } catch (IOException e) {
+            return false;
         }
     }
 
+    /**
+     * Connects, retrying with exponential backoff until the server answers,
+     * and logs the session back in if there was one. Runs on the I/O thread,
+     * so lines sent meanwhile wait and go to the new connection, after the
+     * login.
+     */
+    private void connectWithRetry() {
+        long backoff = RECONNECT_FIRST_MILLIS;
+        while (!connectToServer()) {
+            long wait = backoff + (long) (Math.random() * backoff / 2);
+            SwingUtilities.invokeLater(() -> setTitle("Marketplace Client - reconnecting in "
+                    + (wait + 999) / 1000 + "s..."));
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, RECONNECT_MAX_MILLIS);
+        }
+        String user = currentUser;
+        String password = loginPassword;
+        String role = loginRole;
+        boolean resume = user != null && password != null;
+        if (resume) {
+            out.println("1");
+            out.println(user);
+            out.println(password);
+            out.println(role);
+        }
+        SwingUtilities.invokeLater(() -> {
+            setTitle("Marketplace Client");
+            appendToOutput("Connected to server");
+            // whatever the old connection was in the middle of sending is gone
+            collectingSellers = false;
+            collectingProducts = false;
+            collectingExport = false;
+            inChatMode = false;
+            awaitingInput = false;
+            instantListing = null;
+            resuming = resume;
+            if (!resume) {
+                cardLayout.show(mainPanel, "login");
+            }
+        });
+        startResponseHandler();
+    }
 
-
-    private void connectToServer() {
+    private void connectionLost(Socket lost) {
+        if (lost != socket) return;
         try {
-            socket = new Socket("localhost", 8881);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            appendToOutput("Connected to server");
-            cardLayout.show(mainPanel, "login");
+            lost.close();
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Connection error: " + e.getMessage());
-            System.exit(1);
+            // already gone
+        }
+        SwingUtilities.invokeLater(() -> appendToOutput("Connection to the server lost, reconnecting..."));
+        ioExecutor.execute(this::connectWithRetry);
+    }
+
+    /**
+     * Back at the menu after a reconnect: asks what happened to a request
+     * that could have moved money, repeats one that only reads, and
+     * otherwise asks the user to pick again.
+     */
+    private void resumeInFlight() {
+        String choice = inFlightChoice;
+        String requestId = inFlightRequestId;
+        inFlightChoice = null;
+        inFlightRequestId = null;
+        if (requestId != null) {
+            send(REQUEST_STATUS_PREFIX + requestId);
+        } else if (choice != null && (isClientRole ? CLIENT_REPEATABLE : SELLER_REPEATABLE).contains(choice)) {
+            appendToOutput("Repeating your last request...");
+            inFlightChoice = choice;
+            send(choice);
+        } else if (choice != null) {
+            appendToOutput("Your last action was interrupted, please select it again.");
         }
     }
 
     private void startResponseHandler() {
+        BufferedReader reader = in;
+        Socket connection = socket;
         new Thread(() -> {
             try {
                 String response;
-                while ((response = in.readLine()) != null) {
+                while ((response = reader.readLine()) != null) {
                     String finalResponse = response;
-                    SwingUtilities.invokeLater(() -> handleServerResponse(finalResponse));
+                    SwingUtilities.invokeLater(() -> dispatch(finalResponse));
                 }
             } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> {
-                    appendToOutput(" Disconnected from server.");
-                    JOptionPane.showMessageDialog(this, "Disconnected from server. Please restart the app.");
-                    System.exit(0);
-                });
+                // handled below, same as the server closing the connection
+            }
+            connectionLost(connection);
+        }, "server-reader").start();
+    }
+
+    /**
+     * Handles server lines one at a time, in order, on the EDT. File choosers
+     * and message dialogs are opened with promptLater, after the handler
+     * returns. The seller and product pickers still open in the handler; lines
+     * arriving while one is open are queued and handled after it closes.
+     */
+    private void dispatch(String response) {
+        pendingResponses.add(response);
+        if (dispatching) return;
+        dispatching = true;
+        try {
+            String next;
+            while ((next = pendingResponses.poll()) != null) {
+                handleServerResponse(next);
             }
-        }).start();
+        } finally {
+            dispatching = false;
+        }
     }
 
 
     private void appendToOutput(String text) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> appendToOutput(text));
+            return;
+        }
         outputArea.append(text + "\n");
         outputArea.setCaretPosition(outputArea.getDocument().getLength());
     }
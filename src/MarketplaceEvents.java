@@ -0,0 +1,122 @@
+package src;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * In-process event bus for pushing changes to logged-in sessions. Every
+ * event is one protocol line starting with "PUSH:", so the client can handle
+ * it wherever it lands between other replies. Each session has its own
+ * bounded queue and writer thread, so publishers (which may hold catalog
+ * locks) never wait on a socket and one slow client can't hold up the
+ * others' events. Events reach each session in publish order. A session
+ * that falls QUEUE_SIZE events behind is dropped and disconnected; its
+ * client reloads everything when it logs in again.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class MarketplaceEvents {
+    public static final String PREFIX = "PUSH:";
+    public static final int QUEUE_SIZE = 1024;
+
+    public static class Subscription {
+        private final String user;
+        private final Consumer<String> sink;
+        private final Runnable onOverflow;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final Thread writer;
+
+        Subscription(String user, Consumer<String> sink, Runnable onOverflow) {
+            this.user = user;
+            this.sink = sink;
+            this.onOverflow = onOverflow;
+            this.writer = new Thread(this::write, "event-push-" + user);
+            this.writer.setDaemon(true);
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        private void write() {
+            try {
+                while (true) {
+                    deliver(this, queue.take());
+                }
+            } catch (InterruptedException e) {
+                // unsubscribed
+            }
+        }
+    }
+
+    private static final List<Subscription> SUBSCRIPTIONS = new CopyOnWriteArrayList<>();
+
+    private MarketplaceEvents() {
+    }
+
+    /**
+     * @param onOverflow called, once, if the session falls too far behind and is dropped
+     */
+    public static Subscription subscribe(String user, Consumer<String> sink, Runnable onOverflow) {
+        Subscription s = new Subscription(user, sink, onOverflow);
+        SUBSCRIPTIONS.add(s);
+        s.writer.start();
+        return s;
+    }
+
+    public static void unsubscribe(Subscription s) {
+        if (s != null) {
+            SUBSCRIPTIONS.remove(s);
+            s.writer.interrupt();
+        }
+    }
+
+    /**
+     * Sends the event to every session.
+     */
+    public static synchronized void publishAll(String event) {
+        for (Subscription s : SUBSCRIPTIONS) {
+            enqueue(s, event);
+        }
+    }
+
+    /**
+     * Sends the event to every session logged in as user.
+     */
+    public static synchronized void publishTo(String user, String event) {
+        for (Subscription s : SUBSCRIPTIONS) {
+            if (s.user.equals(user)) {
+                enqueue(s, event);
+            }
+        }
+    }
+
+    // never blocks; a full queue means the client stopped reading
+    private static void enqueue(Subscription s, String event) {
+        if (s.queue.offer(event) || !SUBSCRIPTIONS.remove(s)) return;
+        s.writer.interrupt();
+        System.err.println("Disconnecting " + s.user + ": " + QUEUE_SIZE + " events behind");
+        try {
+            s.onOverflow.run();
+        } catch (RuntimeException e) {
+            System.err.println("Error dropping slow session of " + s.user + ": " + e.getMessage());
+        }
+    }
+
+    private static void deliver(Subscription s, String event) {
+        try {
+            s.sink.accept(PREFIX + event);
+        } catch (RuntimeException e) {
+            System.err.println("Dropping event for " + s.user + ": " + e.getMessage());
+        }
+    }
+
+    public static int subscriberCount() {
+        return SUBSCRIPTIONS.size();
+    }
+}
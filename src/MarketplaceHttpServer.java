@@ -0,0 +1,385 @@
+package src;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Plain HTTP endpoint for product images (GET /images/<name>), so browsers,
+ * caches and proxies can sit in front of the image store. Image names never
+ * get reused, so responses carry a strong ETag, Last-Modified and a long
+ * max-age; conditional requests get 304 and byte ranges are honored.
+ * GET /catalog/<seller> returns the first page of a seller's listing in the
+ * same line format the socket protocol uses, for client-side prefetching;
+ * in a cluster, a seller another node owns is redirected to that node.
+ * GET /replication reports replication state and lag; POST
+ * /replication/promote (from localhost only) turns a replica into a primary.
+ * GET /status shows open connections, idle ones reclaimed, and load.
+ * POST /drain (from localhost only) shuts the server down gracefully; a
+ * server started with --takeover uses it to replace this one.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class MarketplaceHttpServer {
+    private static final String IMAGES_PREFIX = "/images/";
+    private static final String CATALOG_PREFIX = "/catalog/";
+    private static final String REPLICATION_PATH = "/replication";
+    private static final String STATUS_PATH = "/status";
+    private static final String DRAIN_PATH = "/drain";
+    // seconds a client gets to send its request, and to read the response
+    private static final String MAX_REQUEST_SECONDS = "30";
+    private static final String MAX_RESPONSE_SECONDS = "600";
+
+    private static HttpServer server;
+
+    private MarketplaceHttpServer() {
+    }
+
+    public static synchronized void start(int port) throws IOException {
+        if (server != null) return;
+        // read once by the JDK server, so only before the first one is created
+        if (System.getProperty("sun.net.httpserver.maxReqTime") == null) {
+            System.setProperty("sun.net.httpserver.maxReqTime", MAX_REQUEST_SECONDS);
+        }
+        if (System.getProperty("sun.net.httpserver.maxRspTime") == null) {
+            System.setProperty("sun.net.httpserver.maxRspTime", MAX_RESPONSE_SECONDS);
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(IMAGES_PREFIX, MarketplaceHttpServer::handleImage);
+        server.createContext(CATALOG_PREFIX, MarketplaceHttpServer::handleCatalog);
+        server.createContext(REPLICATION_PATH, MarketplaceHttpServer::handleReplication);
+        server.createContext(STATUS_PATH, MarketplaceHttpServer::handleStatus);
+        server.createContext(DRAIN_PATH, MarketplaceHttpServer::handleDrain);
+        server.setExecutor(newExecutor());
+        server.start();
+        System.out.println("HTTP image server started on port " + port);
+    }
+
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(1);
+            server = null;
+        }
+    }
+
+    // a fixed pool if http_threads is set, else virtual threads when the JDK has them (21+), else a cached pool
+    static ExecutorService newExecutor() {
+        int threads = ServerConfig.getInt("http_threads");
+        if (threads > 0) {
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "http-image");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "http-image");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public static String etagOf(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    static void handleImage(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            boolean head = "HEAD".equals(method);
+            if (!head && !"GET".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String name = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring(IMAGES_PREFIX.length()),
+                    StandardCharsets.UTF_8.name());
+            File file = new File(MarketplaceServerInterface.IMAGE_DIR + name);
+            if (!ImageTransfer.isSafeName(name) || !file.isFile()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            long length = file.length();
+            long lastModified = file.lastModified();
+            String etag = etagOf(file);
+            Headers request = exchange.getRequestHeaders();
+            Headers response = exchange.getResponseHeaders();
+            response.set("ETag", etag);
+            response.set("Last-Modified", httpDate(lastModified));
+            response.set("Cache-Control", "public, max-age=31536000, immutable");
+            response.set("Accept-Ranges", "bytes");
+            response.set("Content-Type", contentTypeOf(name));
+
+            if (notModified(request, etag, lastModified)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            long start = 0;
+            long end = length - 1;
+            int status = 200;
+            String range = request.getFirst("Range");
+            String ifRange = request.getFirst("If-Range");
+            if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                long[] bounds = parseRange(range, length);
+                if (bounds == null) {
+                    response.set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                if (bounds.length == 2) {
+                    start = bounds[0];
+                    end = bounds[1];
+                    status = 206;
+                    response.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                }
+            }
+
+            long count = end - start + 1;
+            if (head) {
+                response.set("Content-Length", String.valueOf(count));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, count);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 OutputStream body = exchange.getResponseBody()) {
+                raf.seek(start);
+                long bufferSize = Math.max(1, ServerConfig.getLong("http_buffer_kb")) * 1024;
+                byte[] buffer = new byte[(int) Math.min(bufferSize, Math.max(count, 1))];
+                long remaining = count;
+                while (remaining > 0) {
+                    int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) break;
+                    body.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static void handleCatalog(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String seller = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring(CATALOG_PREFIX.length()),
+                    StandardCharsets.UTF_8.name());
+            if (ImageTransfer.isSafeName(seller) && !ClusterRing.isLocal(seller)) {
+                ClusterRing.Node owner = ClusterRing.owner(seller);
+                exchange.getResponseHeaders().set("Location", "http://" + owner.host + ":" + owner.httpPort()
+                        + exchange.getRequestURI().getRawPath());
+                exchange.sendResponseHeaders(307, -1);
+                return;
+            }
+            if (!ImageTransfer.isSafeName(seller) || !CatalogStore.fileFor(seller).isFile()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            // read before the page, so the page is at least this new
+            long version = ProductCatalog.version();
+            ProductCatalog.Page page = ProductCatalog.browse(seller, ProductCatalog.Sort.NEWEST, 0, Long.MAX_VALUE,
+                    null, ServerConfig.getInt("page_size"));
+            StringBuilder text = new StringBuilder();
+            for (String line : ProductCatalog.pageLines(page, false)) {
+                text.append(line).append('\n');
+            }
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("X-Catalog-Version", String.valueOf(version));
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static void handleReplication(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            StringBuilder text = new StringBuilder();
+            if (path.equals(REPLICATION_PATH + "/promote")) {
+                if (!"POST".equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                    exchange.sendResponseHeaders(403, -1);
+                    return;
+                }
+                boolean promoted = Replication.promote(MarketplaceServer.serverPort + Replication.PORT_OFFSET);
+                text.append(promoted ? "Promoted to primary" : "Already a primary").append('\n');
+            } else if (path.equals(REPLICATION_PATH)) {
+                if (!"GET".equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", "GET");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                for (String line : Replication.status()) {
+                    text.append(line).append('\n');
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static void handleStatus(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            long[] open = SessionReaper.stats();
+            long[] load = RateLimiter.stats();
+            String text = "sessions: " + open[0] + "\n"
+                    + "image connections: " + open[1] + "\n"
+                    + "idle connections reclaimed: " + open[2] + "\n"
+                    + "busy sessions: " + load[0] + "\n"
+                    + "average handling millis: " + load[1] + "\n"
+                    + "rate limited: " + load[2] + "\n"
+                    + "shed: " + load[3] + "\n";
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static void handleDrain(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(202, -1);
+        } finally {
+            exchange.close();
+        }
+        // exiting runs the shutdown hook, which drains; not on this thread, which the drain stops
+        new Thread(() -> System.exit(0), "drain").start();
+    }
+
+    private static boolean notModified(Headers request, String etag, long lastModified) {
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String t = tag.trim();
+                if (t.startsWith("W/")) t = t.substring(2);
+                if (t.equals("*") || t.equals(etag)) return true;
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                return lastModified / 1000 <= httpDateFormat().parse(ifModifiedSince).getTime() / 1000;
+            } catch (java.text.ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single "bytes=a-b" range. Returns {start, end}, an empty array if
+     * the header should be ignored (multiple ranges, or not a valid range such
+     * as "bytes=5-3"), or null if it is valid but unsatisfiable.
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.contains(",")) return new long[0];
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return new long[0];
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix < 0) return new long[0];
+                if (suffix == 0) return null;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                // RFC 9110: a range ending before it starts is invalid and ignored, not unsatisfiable
+                if (end < start) return new long[0];
+                end = Math.min(end, length - 1);
+            }
+            if (start >= length) return null;
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static String contentTypeOf(String name) {
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
+        if (lower.endsWith(".gif")) return "image/gif";
+        if (lower.endsWith(".webp")) return "image/webp";
+        return "application/octet-stream";
+    }
+
+    private static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    static String httpDate(long millis) {
+        return httpDateFormat().format(new Date(millis));
+    }
+}
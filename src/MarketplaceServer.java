@@ -2,7 +2,16 @@ package src;
 import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 /**
  * MarketplaceServer.java
  * A GUI-based client application for
@@ -14,7 +23,18 @@ import java.util.List;
 
 public class MarketplaceServer {
     private static ServerSocket serverSocket;
-    private static boolean running = true;
+    private static ServerSocket imageServerSocket;
+    private static volatile boolean running = true;
+    // set once shutdown starts: no new connections, only in-flight work finishes
+    private static volatile boolean draining = false;
+    // menu lines a reconnecting client uses to tag a request and ask how it ended
+    static final String REQUEST_ID_PREFIX = "REQUEST_ID:";
+    static final String REQUEST_STATUS_PREFIX = "REQUEST_STATUS:";
+    // from server.properties; a port on the command line moves all three,
+    // the image and HTTP servers using the next two so nodes can share a host
+    static int serverPort = MarketplaceServerInterface.SERVER_PORT;
+    static int imagePort = MarketplaceServerInterface.IMAGE_PORT;
+    static int httpPort = MarketplaceServerInterface.HTTP_PORT;
 
     public static final String PRODUCTS_DIR = "products/";
     public static final String CHATS_DIR = "chats/";
@@ -22,26 +42,121 @@ public class MarketplaceServer {
     public static final String SELLERS_FILE = "sellers.txt";
     public static final String BALANCES_FILE = "balances.txt";
     public static final String TRANSACTIONS_FILE = "transactions.txt";
+    public static final String REQUESTS_FILE = "requests.txt";
     public static final String IMAGE_DIR = "images/";
-
+    public static final int MAX_BULK_IMPORT = 50000;
+    public static final int PAGE_SIZE = 20;
+
+    static final String[] CLIENT_MENU = {
+            "1. Shop", "2. Chat with Seller", "3. Search Products", "4. Top Up Wallet", "5. View Balance",
+            "6. View Transaction History", "7. Delete Account", "8. Logout", "9. Browse Products",
+            "10. Trending", "11. View Cart / Checkout"
+    };
+    static final String[] SELLER_MENU = {
+            "1. Add Product", "2. Delete Product", "3. View My Products", "4. Chat with Clients", "5. View Balance",
+            "6. View Transaction History", "7. Delete Account", "8. Logout", "9. Bulk Import Products",
+            "10. Bulk Export Products", "11. Sales Analytics"
+    };
+    // changes whenever a menu's items change, so clients can keep menus across logins
+    static final String CLIENT_MENU_VERSION = Integer.toHexString(Arrays.hashCode(CLIENT_MENU));
+    static final String SELLER_MENU_VERSION = Integer.toHexString(Arrays.hashCode(SELLER_MENU));
+    // first line a node sends when it forwards a session, so limits stay per client
+    static final String FORWARDED_FOR = "FORWARDED_FOR:";
+
+    /**
+     * Usage: MarketplaceServer [port [host:port,host:port,...]] [--self host:port] [--replica-of host:port]
+     * [--takeover]. With a node list the server runs as one node of a
+     * cluster; it finds itself in the list by port and local address, or by
+     * --self when the list names it differently. With --replica-of it is a
+     * read replica of the primary listening there. Run each server from its
+     * own directory. --takeover replaces a server
+     * already running from the same directory without refusing connections.
+     */
     public static void main(String[] args) {
         try {
-            serverSocket = new ServerSocket(8881);
-            System.out.println("Server started on port 8881");
+            ServerConfig.load();
+            serverPort = ServerConfig.getInt("server_port");
+            imagePort = ServerConfig.getInt("image_port");
+            httpPort = ServerConfig.getInt("http_port");
+            if (ServerConfig.getInt("scan_threads") > 0) {
+                System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism",
+                        ServerConfig.get("scan_threads"));
+            }
+            List<String> positional = new ArrayList<>();
+            String primary = null;
+            String self = null;
+            boolean takeover = false;
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--replica-of") && i + 1 < args.length) {
+                    primary = args[++i];
+                } else if (args[i].equals("--self") && i + 1 < args.length) {
+                    self = args[++i];
+                } else if (args[i].equals("--takeover")) {
+                    takeover = true;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+            if (!positional.isEmpty()) {
+                serverPort = Integer.parseInt(positional.get(0));
+                imagePort = serverPort + 1;
+                httpPort = serverPort + 2;
+            }
+            try {
+                ClusterRing.configure(serverPort, positional.size() > 1 ? positional.get(1) : null, self);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+            if (!takeover && isListening(serverPort)) {
+                System.err.println("A server is already running on port " + serverPort
+                        + "; start with --takeover to replace it.");
+                return;
+            }
+            // connections queue on these until we start accepting, so none are refused during a takeover
+            serverSocket = listen(serverPort);
+            imageServerSocket = listen(imagePort);
+            System.out.println("Server started on port " + serverPort);
+            if (takeover) {
+                takeOver();
+            }
 
             initializeDirectories();
             initializeFiles();
+            int replayed = WriteAheadLog.recover();
+            if (replayed > 0) {
+                System.out.println("Recovered " + replayed + " logged changes");
+            }
+            AccountStore.ensureLoaded();
+            ProductCatalog.ensureLoaded();
+            SalesAnalytics.update();
+            startCatalogFlusher();
+            SessionReaper.start();
+
+            if (ClusterRing.isClustered()) {
+                ClusterNode.recover();
+                ClusterNode.start(ClusterRing.self().peerPort());
+            }
+            if (primary != null) {
+                int colon = primary.lastIndexOf(':');
+                Replication.follow(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+            } else {
+                Replication.startPrimary(serverPort + Replication.PORT_OFFSET);
+            }
 
             new Thread(MarketplaceServer::handleImageRequests).start();
+            try {
+                MarketplaceHttpServer.start(httpPort);
+            } catch (IOException e) {
+                System.err.println("HTTP image server failed: " + e.getMessage());
+            }
 
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                running = false;
-                try {
-                    if (serverSocket != null) serverSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing server socket: " + e.getMessage());
-                }
-            }));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(drainMillis())));
+            try {
+                ServerConfig.startWatching();
+            } catch (IOException e) {
+                System.err.println("Not watching " + ServerConfig.CONFIG_FILE + ": " + e.getMessage());
+            }
 
             while (running) {
                 try {
@@ -58,6 +173,115 @@ public class MarketplaceServer {
         }
     }
 
+    /**
+     * Binds a listening socket with SO_REUSEPORT where the platform has it,
+     * so a replacement server can bind the same port before this one closes.
+     */
+    static ServerSocket listen(int port) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        if (socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        socket.bind(new InetSocketAddress(port));
+        return socket;
+    }
+
+    static boolean isListening(int port) {
+        try (Socket probe = new Socket()) {
+            probe.connect(new InetSocketAddress("localhost", port), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Asks the server already running here to drain, and waits for it to
+     * exit before loading any state. New connections wait in our backlog
+     * meanwhile.
+     */
+    static void takeOver() throws IOException {
+        try {
+            HttpURLConnection request = (HttpURLConnection) new URL("http://localhost:" + httpPort + "/drain")
+                    .openConnection();
+            request.setRequestMethod("POST");
+            request.setConnectTimeout(2000);
+            request.setReadTimeout(5000);
+            System.out.println("Asked the running server to drain: HTTP " + request.getResponseCode());
+            request.disconnect();
+        } catch (IOException e) {
+            System.out.println("No running server answered, starting normally");
+            return;
+        }
+        // the old server stops its HTTP server last, right before it exits
+        long deadline = System.currentTimeMillis() + drainMillis() + 10 * 1000L;
+        while (isListening(httpPort)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("The running server didn't finish draining");
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        // its process may still be flushing the last of its output
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Shuts down gracefully: stops accepting, turns away new requests, gives
+     * requests, purchases waiting for their confirmation and image transfers
+     * already running up to deadlineMillis to finish, closes the remaining
+     * sessions and saves everything.
+     */
+    static void drain(long deadlineMillis) {
+        synchronized (MarketplaceServer.class) {
+            if (draining) return;
+            draining = true;
+        }
+        running = false;
+        System.out.println("Draining...");
+        try {
+            if (serverSocket != null) serverSocket.close();
+            if (imageServerSocket != null) imageServerSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+        ClusterNode.stop();
+        long deadline = System.currentTimeMillis() + deadlineMillis;
+        while (System.currentTimeMillis() < deadline
+                && (RateLimiter.stats()[0] > 0 || RateLimiter.confirming() > 0 || SessionReaper.stats()[1] > 0)) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        int closed = SessionReaper.closeAll();
+        System.out.println("Closed " + closed + " connections");
+        SessionReaper.stop();
+        try {
+            ProductCatalog.saveBinaryIfDirty();
+            AccountStore.saveSnapshotIfDirty();
+            RequestLog.compact();
+            WriteAheadLog.checkpoint();
+        } catch (IOException e) {
+            System.err.println("Error saving catalog: " + e.getMessage());
+        }
+        Replication.stop();
+        MarketplaceHttpServer.stop();
+        System.out.println("Drained");
+    }
+
+    static boolean isDraining() {
+        return draining;
+    }
+
     static void initializeDirectories() {
         new File(PRODUCTS_DIR).mkdirs();
         new File(CHATS_DIR).mkdirs();
@@ -69,55 +293,51 @@ public class MarketplaceServer {
         new File(SELLERS_FILE).createNewFile();
         new File(BALANCES_FILE).createNewFile();
         new File(TRANSACTIONS_FILE).createNewFile();
+        new File(REQUESTS_FILE).createNewFile();
     }
 
 
+    // how long in-flight requests and transfers get to finish on shutdown
+    static long drainMillis() {
+        return ServerConfig.getLong("drain_seconds") * 1000L;
+    }
+
+    static void startCatalogFlusher() {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "catalog-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                ProductCatalog.saveBinaryIfDirty();
+                AccountStore.saveSnapshotIfDirty();
+                RequestLog.compact();
+                WriteAheadLog.checkpoint();
+                // sales were folded in from memory; the binary history catches up here
+                SalesAnalytics.update();
+            } catch (IOException e) {
+                System.err.println("Error saving catalog: " + e.getMessage());
+            }
+        }, ServerConfig.getLong("checkpoint_seconds"), Math.max(1, ServerConfig.getLong("checkpoint_seconds")),
+                TimeUnit.SECONDS);
+    }
+
     public static void handleImageRequests() {
-        try (ServerSocket imageServerSocket = new ServerSocket(8882)) {
-            System.out.println("Image server started on port 8882");
+        ImageTransfer.cleanStaging();
+        try (ServerSocket listening = imageServerSocket != null ? imageServerSocket : listen(imagePort)) {
+            System.out.println("Image server started on port " + imagePort);
 
             while (running) {
-                Socket clientSocket = imageServerSocket.accept();
+                Socket clientSocket = listening.accept();
                 new Thread(() -> {
-                    try (
-                            InputStream is = clientSocket.getInputStream();
-                            OutputStream os = clientSocket.getOutputStream();
-                            BufferedReader reader = new BufferedReader(new InputStreamReader(is))
-                    ) {
-                        String command = reader.readLine();
-                        if (command == null) return;
-
-                        if (command.startsWith("UPLOAD:")) {
-                            // Handle image upload
-                            String imageName = command.substring(7).trim();
-                            File imageFile = new File(IMAGE_DIR + imageName);
-                            try (FileOutputStream fos = new FileOutputStream(imageFile)) {
-                                byte[] buffer = new byte[4096];
-                                int bytesRead;
-                                while ((bytesRead = is.read(buffer)) != -1) {
-                                    fos.write(buffer, 0, bytesRead);
-                                }
-                            }
-                            os.write("UPLOAD_SUCCESS".getBytes());
-                        } else {
-                            // Handle image download
-                            String imageName = command.trim();
-                            File imageFile = new File(IMAGE_DIR + imageName);
-                            if (imageFile.exists()) {
-                                try (FileInputStream fis = new FileInputStream(imageFile)) {
-                                    byte[] buffer = new byte[4096];
-                                    int bytesRead;
-                                    while ((bytesRead = fis.read(buffer)) != -1) {
-                                        os.write(buffer, 0, bytesRead);
-                                    }
-                                }
-                            } else {
-                                os.write("Image not found".getBytes());
-                            }
-                        }
+                    try {
+                        SessionReaper.track(clientSocket, SessionReaper.Kind.IMAGE, null);
+                        ImageTransfer.serve(clientSocket);
                     } catch (IOException e) {
                         System.err.println("Image server error: " + e.getMessage());
                     } finally {
+                        SessionReaper.untrack(clientSocket);
                         try {
                             clientSocket.close();
                         } catch (IOException e) {
@@ -127,16 +347,29 @@ public class MarketplaceServer {
                 }).start();
             }
         } catch (IOException e) {
-            System.err.println("Image server failed: " + e.getMessage());
+            if (running) {
+                System.err.println("Image server failed: " + e.getMessage());
+            }
         }
     }
 
     public static class ClientHandler implements Runnable {
         private final Socket clientSocket;
         private BufferedReader in;
-        private PrintWriter out;
+        private volatile PrintWriter out;
         private String currentUser;
         private boolean isSeller;
+        // menus already sent on this connection
+        private final Set<String> menusSent = new HashSet<>();
+        private MarketplaceEvents.Subscription subscription;
+        // product id -> quantity, for this login only
+        private final Map<Long, Integer> cart = new LinkedHashMap<>();
+        // set once the connection has been handed to the node that owns the user
+        private boolean forwarded;
+        // the client's own address, when another node forwarded the connection
+        private String forwardedFor;
+        // the client's id for the current menu choice; recorded with the payment it makes, if any
+        private String requestId;
 
         public void setOut(PrintWriter out) {
             this.out = out;
@@ -153,7 +386,10 @@ public class MarketplaceServer {
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                RateLimiter.TrackedReader reader = new RateLimiter.TrackedReader(
+                        new InputStreamReader(clientSocket.getInputStream()));
+                in = reader;
+                SessionReaper.track(clientSocket, SessionReaper.Kind.SESSION, reader::lastActivity);
                 out = new PrintWriter(clientSocket.getOutputStream(), true);
 
                 out.println("Welcome to the Marketplace Server!");
@@ -162,16 +398,31 @@ public class MarketplaceServer {
                 while (true) {
                     String choice = in.readLine();
                     if (choice == null) break;
+                    if (choice.startsWith(FORWARDED_FOR)) {
+                        // only a cluster node may say whose connection it is relaying
+                        if (ClusterRing.isClustered() && ClusterRing.isNodeAddress(clientSocket.getInetAddress())) {
+                            forwardedFor = choice.substring(FORWARDED_FOR.length());
+                        }
+                        continue;
+                    }
 
                     switch (choice) {
                         case "1":
                             if (handleLogin()) {
-                                if (isSeller) {
-                                    handleSellerMenu();
-                                } else {
-                                    handleClientMenu();
+                                subscription = MarketplaceEvents.subscribe(currentUser, this::push, this::disconnect);
+                                push(MarketplaceEvents.PREFIX + "BALANCE " + String.format("%.2f", getBalance(currentUser)));
+                                try {
+                                    if (isSeller) {
+                                        handleSellerMenu();
+                                    } else {
+                                        handleClientMenu();
+                                    }
+                                } finally {
+                                    MarketplaceEvents.unsubscribe(subscription);
+                                    subscription = null;
+                                    cart.clear();
                                 }
-                            } else {
+                            } else if (!forwarded) {
                                 out.println("LOGIN_FAILED");
                             }
                             break;
@@ -184,11 +435,17 @@ public class MarketplaceServer {
                         default:
                             out.println("Invalid option. Please try again.");
                     }
+                    if (forwarded) return;
                     sendMainMenu();
                 }
+            } catch (SocketTimeoutException e) {
+                // idle for session_idle_minutes; the menus pass this up so the session ends here
+                SessionReaper.timedOut(clientSocket);
             } catch (IOException e) {
                 System.err.println("Client handler error: " + e.getMessage());
             } finally {
+                SessionReaper.untrack(clientSocket);
+                MarketplaceEvents.unsubscribe(subscription);
                 try {
                     if (in != null) in.close();
                     if (out != null) out.close();
@@ -199,6 +456,43 @@ public class MarketplaceServer {
             }
         }
 
+        // called from the session's event thread; println is atomic per line, and PUSH: lines may land anywhere
+        void push(String event) {
+            PrintWriter w = out;
+            if (w != null) {
+                w.println(event);
+            }
+        }
+
+        // the client stopped reading its events; closing the socket ends the session
+        void disconnect() {
+            try {
+                if (clientSocket != null) clientSocket.close();
+            } catch (IOException e) {
+                // closed either way
+            }
+        }
+
+        /**
+         * Sends the full menu the first time on this connection, and after that
+         * only its version; the client asks with "MENU" if it doesn't have it.
+         */
+        void sendRoleMenu(boolean force) {
+            String role = isSeller ? "SELLER" : "CLIENT";
+            String version = isSeller ? SELLER_MENU_VERSION : CLIENT_MENU_VERSION;
+            if (!force && menusSent.contains(role)) {
+                out.println("MENU_UNCHANGED:" + role + ":" + version);
+                return;
+            }
+            out.println("=== " + role + " MENU ===");
+            out.println("MENU_VERSION:" + version);
+            for (String item : isSeller ? SELLER_MENU : CLIENT_MENU) {
+                out.println(item);
+            }
+            out.println("===END_MENU===");
+            menusSent.add(role);
+        }
+
         void sendMainMenu() {
             out.println("=== MAIN MENU ===");
             out.println("1. Login");
@@ -212,6 +506,10 @@ public class MarketplaceServer {
             out.println("Enter username:");
             String username = in.readLine();
             if (username == null) return false;
+            if (!ClusterRing.isLocal(username)) {
+                forwardSession("1", username);
+                return false;
+            }
 
             out.println("Enter password:");
             String password = in.readLine();
@@ -220,6 +518,8 @@ public class MarketplaceServer {
             out.println("Are you a Seller (1) or Client (2)?");
             String role = in.readLine();
             if (role == null) return false;
+            // by address, so guessing passwords across many usernames is limited too
+            if (!admitted(clientAddress(), RateLimiter.Op.LOGIN)) return false;
 
             if ("1".equals(role)) {
                 if (checkCredentials(SELLERS_FILE, username, password)) {
@@ -245,8 +545,13 @@ public class MarketplaceServer {
         }
 
         void handleAccountCreation() throws IOException {
+            if (readOnly()) return;
             out.println("Enter username:");
             String username = in.readLine();
+            if (username != null && !ClusterRing.isLocal(username)) {
+                forwardSession("2", username);
+                return;
+            }
             out.println("Enter password:");
             String password = in.readLine();
             out.println("Are you a Seller (1) or Client (2)?");
@@ -258,30 +563,152 @@ public class MarketplaceServer {
             }
 
             String file = role.equals("1") ? SELLERS_FILE : CLIENTS_FILE;
-            synchronized (file.intern()) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
-                    writer.write(username + ":" + password);
-                    writer.newLine();
-                }
+            synchronized (BALANCES_FILE.intern()) {
+                // the account and its starting balance are saved together or not at all
+                String balance = String.valueOf(getBalance(username) + 100.00);
+                WriteAheadLog.batch()
+                        .set(file, username, password)
+                        .set(BALANCES_FILE, username, balance)
+                        .commit();
+                AccountStore.applied(file, username, password);
+                AccountStore.applied(BALANCES_FILE, username, balance);
             }
-
-            updateBalance(username, 100.00);
             out.println("Account created successfully with starting balance of $100.00");
         }
 
-        boolean checkCredentials(String file, String username, String password) throws IOException {
-            synchronized (file.intern()) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        String[] parts = line.split(":");
-                        if (parts.length == 2 && parts[0].equals(username) && parts[1].equals(password)) {
-                            return true;
+        String clientAddress() {
+            return forwardedFor != null ? forwardedFor : String.valueOf(clientSocket.getInetAddress());
+        }
+
+        /**
+         * Hands the rest of this connection to the node that owns the user:
+         * tells it the client's address, replays the main menu choice and
+         * username there, skips the prompts the client has already seen, then
+         * relays lines both ways until either side hangs up.
+         */
+        void forwardSession(String choice, String username) throws IOException {
+            forwarded = true;
+            ClusterRing.Node owner = ClusterRing.owner(username);
+            try (Socket upstream = new Socket(owner.host, owner.port)) {
+                BufferedReader upIn = new BufferedReader(new InputStreamReader(upstream.getInputStream()));
+                PrintWriter upOut = new PrintWriter(upstream.getOutputStream(), true);
+                String line;
+                while ((line = upIn.readLine()) != null && !line.startsWith("Please enter your choice")) {
+                    // the client already has the welcome and main menu
+                }
+                upOut.println(FORWARDED_FOR + clientAddress());
+                upOut.println(choice);
+                while ((line = upIn.readLine()) != null && !line.equals("Enter username:")) {
+                    // nothing else comes before the username prompt
+                }
+                upOut.println(username);
+
+                Thread down = new Thread(() -> {
+                    try {
+                        String l;
+                        while ((l = upIn.readLine()) != null) {
+                            out.println(l);
+                        }
+                    } catch (IOException e) {
+                        // upstream closed
+                    } finally {
+                        try {
+                            clientSocket.shutdownInput();
+                        } catch (IOException e) {
+                            // already closed
                         }
                     }
+                }, "session-forward");
+                down.setDaemon(true);
+                down.start();
+                while ((line = in.readLine()) != null) {
+                    upOut.println(line);
                 }
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                out.println("The server for this account is unavailable, please try again later.");
+                throw e;
+            }
+        }
+
+        /**
+         * Checks the request against the rate limits and the server's load,
+         * and tells the client it's busy if it has to wait. While draining
+         * nothing new is started, purchases and checkouts included; one
+         * already waiting for its confirmation still finishes.
+         */
+        boolean admitted(String key, RateLimiter.Op op) {
+            if (op == null) return true;
+            if (draining) {
+                out.println(RateLimiter.BUSY_PREFIX + "The server is restarting, please try again in a moment.");
                 return false;
             }
+            String refusal = RateLimiter.admit(key, op);
+            if (refusal == null) return true;
+            out.println(refusal);
+            return false;
+        }
+
+        // the answer to a purchase's yes/no, which a drain waits for
+        String readConfirmation() throws IOException {
+            if (in instanceof RateLimiter.TrackedReader) {
+                return ((RateLimiter.TrackedReader) in).readConfirmation();
+            }
+            return in.readLine();
+        }
+
+        static RateLimiter.Op clientOp(String choice) {
+            switch (choice) {
+                case "1": case "3": case "9": case "10": return RateLimiter.Op.SEARCH;
+                case "2": return RateLimiter.Op.CHAT;
+                case "4": return RateLimiter.Op.WALLET;
+                case "5": case "6": return RateLimiter.Op.READ;
+                case "7": return RateLimiter.Op.WRITE;
+                case "11": return RateLimiter.Op.PURCHASE;
+                default: return null;
+            }
+        }
+
+        static RateLimiter.Op sellerOp(String choice) {
+            switch (choice) {
+                case "1": case "2": case "7": case "9": return RateLimiter.Op.WRITE;
+                case "3": case "5": case "6": case "10": case "11": return RateLimiter.Op.READ;
+                case "4": return RateLimiter.Op.CHAT;
+                default: return null;
+            }
+        }
+
+        /**
+         * Tells a client that lost its connection what became of a request it
+         * had in flight: REQUEST_DONE with what it did, or REQUEST_UNKNOWN if
+         * it never completed (and so changed nothing).
+         */
+        void reportRequest(String id) throws IOException {
+            String result = RequestLog.result(currentUser, id);
+            if (result != null) {
+                out.println("REQUEST_DONE:" + id + " " + result);
+            } else {
+                out.println("REQUEST_UNKNOWN:" + id);
+            }
+        }
+
+        // a retried request that already went through must not pay twice
+        boolean alreadyDone() throws IOException {
+            if (requestId == null || RequestLog.result(currentUser, requestId) == null) return false;
+            out.println("That request was already completed.");
+            return true;
+        }
+
+        // replicas serve reads only; changes have to go to the primary
+        boolean readOnly() {
+            if (!Replication.isReplica()) return false;
+            out.println("This server is a read-only replica. Please connect to the primary to make changes.");
+            return true;
+        }
+
+        boolean checkCredentials(String file, String username, String password) throws IOException {
+            return password != null && password.equals(AccountStore.password(file, username));
         }
 
         boolean checkUserExists(String username) throws IOException {
@@ -289,44 +716,37 @@ public class MarketplaceServer {
         }
 
         boolean checkUserExists(String username, String file) throws IOException {
-            synchronized (file.intern()) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        if (line.startsWith(username + ":")) {
-                            return true;
-                        }
-                    }
-                }
-                return false;
-            }
+            return AccountStore.exists(file, username);
         }
+
         void handleClientMenu() throws IOException {
             boolean firstTime = true;
 
             while (true) {
                 try {
                     if (firstTime) {
-                        out.println("=== CLIENT MENU ===");
-                        out.println("1. Shop");
-                        out.println("2. Chat with Seller");
-                        out.println("3. Search Products");
-                        out.println("4. Top Up Wallet");
-                        out.println("5. View Balance");
-                        out.println("6. View Transaction History");
-                        out.println("7. Delete Account");
-                        out.println("8. Logout");
-                        out.println("===END_MENU===");
+                        sendRoleMenu(false);
                         firstTime = false;
                     }
 
-                    out.println("Please select your choice (1-8):");
+                    out.println("Please select your choice (1-11):");
                     String choice = in.readLine();
 
                     if (choice == null) {
                         System.out.println("[INFO] Client disconnected.");
                         break;
                     }
+                    if (choice.startsWith(REQUEST_STATUS_PREFIX)) {
+                        reportRequest(choice.substring(REQUEST_STATUS_PREFIX.length()).trim());
+                        continue;
+                    }
+                    requestId = null;
+                    if (choice.startsWith(REQUEST_ID_PREFIX)) {
+                        requestId = choice.substring(REQUEST_ID_PREFIX.length()).trim();
+                        choice = in.readLine();
+                        if (choice == null) break;
+                    }
+                    if (!admitted(currentUser, clientOp(choice))) continue;
 
                     switch (choice) {
                         case "1": handleShopping(); break;
@@ -335,14 +755,23 @@ public class MarketplaceServer {
                         case "4": handleTopUp(); break;
                         case "5": out.println("Your current balance: $" + getBalance(currentUser)); break;
                         case "6": viewTransactionHistory(currentUser); break;
-                        case "7": deleteAccount(currentUser); return;
+                        case "7":
+                            if (readOnly()) break;
+                            deleteAccount(currentUser);
+                            return;
                         case "8":
                             out.println("Logging out...");
                             return;
+                        case "9": handleBrowse(); break;
+                        case "10": viewTrending(); break;
+                        case "11": handleCart(); break;
+                        case "MENU": sendRoleMenu(true); break;
                         default:
                             out.println("Invalid choice, try again.");
                     }
 
+                } catch (SocketTimeoutException e) {
+                    throw e;
                 } catch (IOException e) {
                     System.out.println("[INFO] Client forcibly disconnected from client menu.");
                     break;
@@ -353,6 +782,9 @@ public class MarketplaceServer {
 
         void handleShopping() throws IOException {
             String[] sellers = getAllSellers();
+            if (ClusterRing.isClustered()) {
+                sellers = ClusterNode.allSellers(sellers).toArray(new String[0]);
+            }
             out.println("AVAILABLE_SELLERS");
             for (int i = 0; i < sellers.length; i++) {
                 out.println((i + 1) + ". " + sellers[i]);
@@ -365,117 +797,440 @@ public class MarketplaceServer {
                 int sellerChoice = Integer.parseInt(choiceStr);
                 if (sellerChoice > 0 && sellerChoice <= sellers.length) {
                     String selectedSeller = sellers[sellerChoice - 1];
-                    String[] products = getProducts(selectedSeller);
+                    if (ClusterRing.isLocal(selectedSeller)) {
+                        browseAndBuy(selectedSeller, ProductCatalog.Sort.NEWEST, 0, Long.MAX_VALUE);
+                    } else {
+                        browseAndBuyRemote(selectedSeller);
+                    }
+                } else {
+                    out.println("Invalid seller selection.");
+                }
+            } catch (NumberFormatException e) {
+                out.println("Please enter valid numbers.");
+            }
+        }
 
-                    out.println("SELLER_PRODUCTS");
 
-                    List<String> sentProducts = new ArrayList<>();
-                    int count = 1;
+        /**
+         * Sends one page of products at a time. The client answers with a product
+         * number to buy it, "next" for the following page, or 0 to stop.
+         */
+        void browseAndBuy(String seller, ProductCatalog.Sort sort, long minCents, long maxCents) throws IOException {
+            String cursor = null;
+            while (true) {
+                ProductCatalog.Page page = ProductCatalog.browse(seller, sort, minCents, maxCents, cursor,
+                        ServerConfig.getInt("page_size"));
+                sendProductPage(page, seller == null);
+
+                out.println("Enter product number to purchase, 'next' for more (or 0 to cancel):");
+                String choice = in.readLine();
+                if (choice == null) return;
+
+                if ("next".equalsIgnoreCase(choice.trim())) {
+                    if (page.nextCursor == null) {
+                        out.println("No more products.");
+                        return;
+                    }
+                    cursor = page.nextCursor;
+                    continue;
+                }
 
-                    for (String p : products) {
-                        p = p.trim();
-                        if (!sentProducts.contains(p)) {
-                            out.println(count + ". " + p);
-                            sentProducts.add(p);
-                            count++;
-                        }
+                int productNum = Integer.parseInt(choice.trim());
+                if (productNum > 0 && productNum <= page.slots.length) {
+                    purchase(ProductCatalog.get(ProductCatalog.idOf(page.slots[productNum - 1])));
+                }
+                return;
+            }
+        }
+
+        /**
+         * browseAndBuy for a seller another node owns: pages come from that
+         * node and a purchase is a two-phase transfer with it.
+         */
+        void browseAndBuyRemote(String seller) throws IOException {
+            String cursor = null;
+            while (true) {
+                String[] next = new String[1];
+                List<Product> products;
+                try {
+                    products = ClusterNode.page(seller, cursor, next);
+                } catch (IOException e) {
+                    out.println("The seller's server is unavailable, please try again later.");
+                    return;
+                }
+                out.println("SELLER_PRODUCTS");
+                for (int i = 0; i < products.size(); i++) {
+                    out.println((i + 1) + ". " + products.get(i).toDisplayLine());
+                }
+                if (next[0] != null) {
+                    out.println("MORE_PRODUCTS");
+                }
+                out.println("END_PRODUCTS");
+
+                out.println("Enter product number to purchase, 'next' for more (or 0 to cancel):");
+                String choice = in.readLine();
+                if (choice == null) return;
+                if ("next".equalsIgnoreCase(choice.trim())) {
+                    if (next[0] == null) {
+                        out.println("No more products.");
+                        return;
                     }
+                    cursor = next[0];
+                    continue;
+                }
 
-                    for (String p : sentProducts) {
-                        String[] parts = p.split(",");
-                        if (parts.length >= 3 && !parts[2].equalsIgnoreCase("none")) {
-                            out.println("IMG:" + parts[2].trim());
-                        }
+                int productNum = Integer.parseInt(choice.trim());
+                if (productNum > 0 && productNum <= products.size()) {
+                    Product product = products.get(productNum - 1);
+                    out.println("Confirm purchase of '" + product.getName() + "' for $"
+                            + Product.formatCents(product.getPriceCents()) + "? (yes/no)");
+                    if (!"yes".equalsIgnoreCase(readConfirmation())) {
+                        out.println("Purchase cancelled.");
+                        return;
+                    }
+                    if (alreadyDone()) return;
+                    String error = ClusterNode.purchase(currentUser, product, requestLine(
+                            "Purchase: " + product.getName() + " $" + Product.formatCents(product.getPriceCents())));
+                    requestId = null;
+                    if (error != null) {
+                        out.println(error + " Your balance: $" + getBalance(currentUser));
+                    } else {
+                        out.println("Payment successful! Remaining balance: $" + getBalance(currentUser));
+                        TrendingTracker.PURCHASES.record(product.getName() + " (" + seller + ")");
                     }
+                }
+                return;
+            }
+        }
+
+        void sendProductPage(ProductCatalog.Page page, boolean showSeller) {
+            out.println("SELLER_PRODUCTS");
+            for (String line : ProductCatalog.pageLines(page, showSeller)) {
+                out.println(line);
+            }
+            out.println("END_PRODUCTS");
+        }
+
+        void purchase(Product product) throws IOException {
+            if (readOnly()) return;
+            if (!admitted(currentUser, RateLimiter.Op.PURCHASE)) return;
+            if (alreadyDone()) return;
+            if (product == null) {
+                out.println("That product is no longer available.");
+                return;
+            }
 
-                    out.println("END_PRODUCTS");
+            Inventory.Reservation reservation = Inventory.reserve(product, currentUser, 1);
+            if (reservation == null) {
+                out.println("Sorry, '" + product.getName() + "' is sold out.");
+                return;
+            }
 
-                    out.println("Enter product number to purchase (or 0 to cancel):");
-                    String productChoice = in.readLine();
-                    int productNum = Integer.parseInt(productChoice);
+            out.println("Confirm purchase of '" + product.getName() + "' for $"
+                    + Product.formatCents(product.getPriceCents()) + "? (yes/no/cart)");
+            String confirm = readConfirmation();
+
+            if ("cart".equalsIgnoreCase(confirm)) {
+                Inventory.release(reservation);
+                cart.merge(product.getId(), 1, Integer::sum);
+                out.println("Added '" + product.getName() + "' to your cart (" + cartSize() + " items).");
+            } else if (!"yes".equalsIgnoreCase(confirm)) {
+                Inventory.release(reservation);
+                out.println("Purchase cancelled.");
+            } else if (!Inventory.commit(reservation)) {
+                out.println("Sorry, '" + product.getName() + "' sold out while you were deciding.");
+            } else if (!processPurchase(currentUser, product.getSeller(), product.getPrice(), product.getName(),
+                    reservation)) {
+                Inventory.refund(reservation);
+            }
+        }
 
-                    if (productNum > 0 && productNum <= sentProducts.size()) {
-                        String[] productInfo = sentProducts.get(productNum - 1).split(",");
-                        String productName = productInfo[0];
-                        double price = Double.parseDouble(productInfo[1]);
+        int cartSize() {
+            int items = 0;
+            for (int quantity : cart.values()) {
+                items += quantity;
+            }
+            return items;
+        }
 
-                        out.println("Confirm purchase of '" + productName + "' for $" + price + "? (yes/no)");
-                        String confirm = in.readLine();
+        /**
+         * Shows the cart and takes "checkout", "remove <n>", "clear" or 0.
+         */
+        void handleCart() throws IOException {
+            // drop listings that were deleted since they were added
+            cart.keySet().removeIf(id -> ProductCatalog.get(id) == null);
+            if (cart.isEmpty()) {
+                out.println("Your cart is empty.");
+                return;
+            }
 
-                        if ("yes".equalsIgnoreCase(confirm)) {
-                            processPurchase(currentUser, selectedSeller, price, productName);
-                        } else {
-                            out.println("Purchase cancelled.");
-                        }
+            List<Long> ids = new ArrayList<>(cart.keySet());
+            long totalCents = 0;
+            out.println("=== CART ===");
+            for (int i = 0; i < ids.size(); i++) {
+                Product product = ProductCatalog.get(ids.get(i));
+                int quantity = cart.get(ids.get(i));
+                totalCents += product.getPriceCents() * quantity;
+                out.println("#" + (i + 1) + " " + product.getName() + " (" + product.getSeller() + ") x" + quantity
+                        + " - $" + Product.formatCents(product.getPriceCents() * quantity));
+            }
+            out.println("Total: $" + Product.formatCents(totalCents));
+            out.println("===END OF CART===");
+
+            out.println("Enter 'checkout', 'remove <number>', 'clear' or 0 to go back:");
+            String choice = in.readLine();
+            if (choice == null) return;
+            choice = choice.trim().toLowerCase();
+            if (choice.equals("checkout")) {
+                checkout(ids);
+            } else if (choice.equals("clear")) {
+                cart.clear();
+                out.println("Cart cleared.");
+            } else if (choice.startsWith("remove ")) {
+                try {
+                    int n = Integer.parseInt(choice.substring("remove ".length()).trim());
+                    if (n > 0 && n <= ids.size()) {
+                        cart.remove(ids.get(n - 1));
+                        out.println("Removed item " + n + ".");
+                    } else {
+                        out.println("Invalid item number.");
                     }
-                } else {
-                    out.println("Invalid seller selection.");
+                } catch (NumberFormatException e) {
+                    out.println("Invalid item number.");
                 }
-            } catch (NumberFormatException e) {
-                out.println("Please enter valid numbers.");
             }
         }
 
+        /**
+         * Buys everything in the cart at once: all the stock is reserved
+         * first, then the whole total is paid as one logged change.
+         */
+        void checkout(List<Long> ids) throws IOException {
+            if (readOnly()) return;
+            if (alreadyDone()) return;
+            List<Inventory.Reservation> reservations = new ArrayList<>();
+            List<Payment> payments = new ArrayList<>();
+            List<Product> products = new ArrayList<>();
+            for (long id : ids) {
+                Product product = ProductCatalog.get(id);
+                int quantity = cart.get(id);
+                Inventory.Reservation r = product == null ? null : Inventory.reserve(product, currentUser, quantity);
+                if (r == null) {
+                    for (Inventory.Reservation held : reservations) {
+                        Inventory.release(held);
+                    }
+                    out.println("Checkout failed: '" + (product == null ? "a product" : product.getName())
+                            + "' is no longer available in that quantity.");
+                    return;
+                }
+                reservations.add(r);
+                products.add(product);
+                for (int i = 0; i < quantity; i++) {
+                    payments.add(new Payment(product.getSeller(), product.getPrice(), "Purchase: " + product.getName()));
+                }
+            }
+
+            List<Inventory.Reservation> committed = new ArrayList<>();
+            for (Inventory.Reservation r : reservations) {
+                if (Inventory.commit(r)) {
+                    committed.add(r);
+                }
+            }
+            if (committed.size() < reservations.size()) {
+                for (Inventory.Reservation r : committed) {
+                    Inventory.refund(r);
+                }
+                out.println("Checkout failed: an item sold out during checkout.");
+                return;
+            }
+            if (!pay(currentUser, payments, committed)) {
+                for (Inventory.Reservation r : committed) {
+                    Inventory.refund(r);
+                }
+                out.println("Payment failed: Insufficient funds. Your balance: $" + getBalance(currentUser));
+                return;
+            }
+
+            for (int i = 0; i < products.size(); i++) {
+                Product product = products.get(i);
+                for (int n = 0; n < reservations.get(i).getQuantity(); n++) {
+                    TrendingTracker.PURCHASES.record(product.getName() + " (" + product.getSeller() + ")");
+                }
+            }
+            cart.clear();
+            out.println("Checkout successful! " + payments.size() + " items bought. Remaining balance: $"
+                    + getBalance(currentUser));
+        }
 
-        void processPurchase(String buyer, String seller, double amount, String productName) throws IOException {
-            double buyerBalance = getBalance(buyer);
+        void handleBrowse() throws IOException {
+            out.println("Sort by (1) price low-high, (2) price high-low, (3) newest, (4) name:");
+            String sortStr = in.readLine();
+            if (sortStr == null) return;
+
+            ProductCatalog.Sort sort;
+            switch (sortStr.trim()) {
+                case "1": sort = ProductCatalog.Sort.PRICE_LOW; break;
+                case "2": sort = ProductCatalog.Sort.PRICE_HIGH; break;
+                case "3": sort = ProductCatalog.Sort.NEWEST; break;
+                case "4": sort = ProductCatalog.Sort.NAME; break;
+                default:
+                    out.println("Invalid sort option.");
+                    return;
+            }
 
-            if (buyerBalance < amount) {
-                out.println("Payment failed: Insufficient funds. Your balance: $" + buyerBalance);
+            out.println("Minimum price (0 for no minimum):");
+            String minStr = in.readLine();
+            out.println("Maximum price (0 for no maximum):");
+            String maxStr = in.readLine();
+            long minCents = minStr == null ? -1 : Product.parseCents(minStr);
+            long maxCents = maxStr == null ? -1 : Product.parseCents(maxStr);
+            if (minCents < 0 || maxCents < 0) {
+                out.println("Invalid price input.");
                 return;
             }
+            if (maxCents == 0) maxCents = Long.MAX_VALUE;
+
+            try {
+                browseAndBuy(null, sort, minCents, maxCents);
+            } catch (NumberFormatException e) {
+                out.println("Please enter valid numbers.");
+            }
+        }
 
-            updateBalance(buyer, -amount);
-            updateBalance(seller, amount);
-            recordTransaction(buyer, seller, amount, "Purchase: " + productName);
+        boolean processPurchase(String buyer, String seller, double amount, String productName,
+                                Inventory.Reservation sold) throws IOException {
+            List<Payment> payments = new ArrayList<>();
+            payments.add(new Payment(seller, amount, "Purchase: " + productName));
+            if (!pay(buyer, payments, Collections.singletonList(sold))) {
+                out.println("Payment failed: Insufficient funds. Your balance: $" + getBalance(buyer));
+                return false;
+            }
 
             out.println("Payment successful! Remaining balance: $" + getBalance(buyer));
+            TrendingTracker.PURCHASES.record(productName + " (" + seller + ")");
+            return true;
         }
 
         double getBalance(String user) throws IOException {
-            try (BufferedReader reader = new BufferedReader(new FileReader(BALANCES_FILE))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(":");
-                    if (parts.length == 2 && parts[0].equals(user)) {
-                        return Double.parseDouble(parts[1]);
-                    }
-                }
-            }
-            return 0.0;
+            return AccountStore.balance(user);
         }
 
         void updateBalance(String user, double amount) throws IOException {
-            List<String> lines = new ArrayList<>();
-            boolean found = false;
+            double updated;
+            synchronized (BALANCES_FILE.intern()) {
+                updated = getBalance(user) + amount;
+                WriteAheadLog.batch().set(BALANCES_FILE, user, String.valueOf(updated)).commit();
+                AccountStore.applied(BALANCES_FILE, user, String.valueOf(updated));
+            }
+            MarketplaceEvents.publishTo(user, "BALANCE " + String.format("%.2f", updated));
+        }
 
-            try (BufferedReader reader = new BufferedReader(new FileReader(BALANCES_FILE))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(":");
-                    if (parts.length == 2 && parts[0].equals(user)) {
-                        double updated = Double.parseDouble(parts[1]) + amount;
-                        lines.add(user + ":" + updated);
-                        found = true;
-                    } else {
-                        lines.add(line);
+        /**
+         * One line of a payment: money going to a user, with its ledger note.
+         */
+        static class Payment {
+            final String to;
+            final double amount;
+            final String note;
+
+            Payment(String to, double amount, String note) {
+                this.to = to;
+                this.amount = amount;
+                this.note = note;
+            }
+        }
+
+        /**
+         * Moves money between users and records the transaction, all as one
+         * logged change. Top-ups come from "SYSTEM", which has no balance.
+         *
+         * @return false if from doesn't have enough money
+         */
+        boolean transfer(String from, String to, double amount, String note) throws IOException {
+            List<Payment> payments = new ArrayList<>();
+            payments.add(new Payment(to, amount, note));
+            return pay(from, payments, Collections.<Inventory.Reservation>emptyList());
+        }
+
+        /**
+         * Pays every line from one user as a single logged change: the total
+         * is checked once, then all balances and ledger lines are committed
+         * together, so either every payment happens or none does. The stock
+         * of the committed reservations being paid for is written with them.
+         *
+         * @return false if from doesn't have enough money for the total
+         */
+        boolean pay(String from, List<Payment> payments, List<Inventory.Reservation> sold) throws IOException {
+            boolean system = from.equals("SYSTEM");
+            // user -> new balance, in the order they were touched
+            Map<String, Double> balances = new LinkedHashMap<>();
+            synchronized (BALANCES_FILE.intern()) {
+                WriteAheadLog.Batch batch = WriteAheadLog.batch();
+                if (!system) {
+                    double total = 0;
+                    for (Payment p : payments) {
+                        total += p.amount;
                     }
+                    double fromBalance = getBalance(from);
+                    // money held by cross-node purchases in flight can't be spent twice
+                    if (fromBalance - ClusterNode.held(from) < total) return false;
+                    balances.put(from, fromBalance - total);
+                }
+                List<String> ledger = new ArrayList<>();
+                for (Payment p : payments) {
+                    Double current = balances.get(p.to);
+                    balances.put(p.to, (current != null ? current : getBalance(p.to)) + p.amount);
+                    ledger.add(transactionLine(from, p.to, p.amount, p.note));
+                }
+                // one append for all lines, the log tells appends apart by file offset
+                batch.append(TRANSACTIONS_FILE, ledger);
+                String request = requestLine(paymentSummary(payments));
+                if (request != null) {
+                    batch.append(REQUESTS_FILE, request);
+                    requestId = null;
+                }
+                for (Map.Entry<String, Double> e : balances.entrySet()) {
+                    batch.set(BALANCES_FILE, e.getKey(), String.valueOf(e.getValue()));
+                }
+                Set<String> sellers = Inventory.sold(batch, sold);
+                if (sellers.isEmpty()) {
+                    batch.commit();
+                } else {
+                    ProductCatalog.commitSale(batch, sellers, sold);
                 }
+                for (Map.Entry<String, Double> e : balances.entrySet()) {
+                    AccountStore.applied(BALANCES_FILE, e.getKey(), String.valueOf(e.getValue()));
+                }
+                SalesAnalytics.recorded(ledger);
             }
-
-            if (!found) {
-                lines.add(user + ":" + amount);
+            for (Map.Entry<String, Double> e : balances.entrySet()) {
+                MarketplaceEvents.publishTo(e.getKey(), "BALANCE " + String.format("%.2f", e.getValue()));
+            }
+            for (Payment p : payments) {
+                publishTransaction(from, p.to, p.amount, p.note);
             }
+            return true;
+        }
 
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(BALANCES_FILE))) {
-                for (String l : lines) {
-                    writer.write(l);
-                    writer.newLine();
-                }
+        /**
+         * @return the line recording the current request id with summary, or null without one
+         */
+        String requestLine(String summary) {
+            return requestId == null ? null : RequestLog.line(currentUser, requestId, summary);
+        }
+
+        static String paymentSummary(List<Payment> payments) {
+            double total = 0;
+            for (Payment p : payments) {
+                total += p.amount;
             }
+            String what = payments.size() == 1 ? payments.get(0).note : payments.size() + " items";
+            return what + " $" + String.format("%.2f", total);
         }
 
         void handleTopUp() throws IOException {
+            if (readOnly()) return;
+            if (alreadyDone()) return;
             out.println("Enter amount to top up:");
             String input = in.readLine();
             try {
@@ -484,8 +1239,7 @@ public class MarketplaceServer {
                     out.println("Amount must be positive.");
                     return;
                 }
-                updateBalance(currentUser, amount);
-                recordTransaction("SYSTEM", currentUser, amount, "Top-up");
+                transfer("SYSTEM", currentUser, amount, "Top-up");
                 out.println("Top up successful. New balance: $" + getBalance(currentUser));
             } catch (NumberFormatException e) {
                 out.println("Invalid amount.");
@@ -496,22 +1250,14 @@ public class MarketplaceServer {
             while (true) {
                 try {
                     if (firstTime) {
-                        out.println("=== SELLER MENU ===");
-                        out.println("1. Add Product");
-                        out.println("2. Delete Product");
-                        out.println("3. View My Products");
-                        out.println("4. Chat with Clients");
-                        out.println("5. View Balance");
-                        out.println("6. View Transaction History");
-                        out.println("7. Delete Account");
-                        out.println("8. Logout");
-                        out.println("===END_MENU===");
+                        sendRoleMenu(false);
                         firstTime = false;
                     }
 
-                    out.println("Please select your choice (1-8):");
+                    out.println("Please select your choice (1-11):");
                     String choice = in.readLine();
                     if (choice == null) break;
+                    if (!admitted(currentUser, sellerOp(choice))) continue;
 
                     switch (choice) {
                         case "1": handleAddProduct(); break;
@@ -520,10 +1266,19 @@ public class MarketplaceServer {
                         case "4": handleSellerChat(); break;
                         case "5": out.println("Your current balance: $" + getBalance(currentUser)); break;
                         case "6": viewTransactionHistory(currentUser); break;
-                        case "7": deleteAccount(currentUser); return;
+                        case "7":
+                            if (readOnly()) break;
+                            deleteAccount(currentUser);
+                            return;
                         case "8": out.println("Logging out..."); return;
+                        case "9": handleBulkImport(); break;
+                        case "10": handleBulkExport(); break;
+                        case "11": viewSalesAnalytics(currentUser); break;
+                        case "MENU": sendRoleMenu(true); break;
                         default: out.println("Invalid choice, try again.");
                     }
+                } catch (SocketTimeoutException e) {
+                    throw e;
                 } catch (IOException e) {
                     System.out.println("Seller disconnected unexpectedly.");
                     break;
@@ -533,17 +1288,34 @@ public class MarketplaceServer {
 
 
         void handleAddProduct() throws IOException {
+            if (readOnly()) return;
             out.println("Enter product name:");
             String name = in.readLine();
+            if (name == null || name.trim().isEmpty() || name.contains(",")) {
+                out.println("Product name must be non-empty and cannot contain commas.");
+                return;
+            }
+            name = name.trim();
 
             out.println("Enter price:");
             String priceStr = in.readLine();
+            long priceCents = priceStr == null ? -1 : Product.parseCents(priceStr);
+            if (priceCents < 0) {
+                out.println("Invalid price input.");
+                return;
+            }
 
-            double price;
+            out.println("Enter stock quantity (-1 for unlimited):");
+            String stockStr = in.readLine();
+            int stock;
             try {
-                price = Double.parseDouble(priceStr);
-            } catch (NumberFormatException e) {
-                out.println("Invalid price input.");
+                stock = Integer.parseInt(stockStr.trim());
+            } catch (NumberFormatException | NullPointerException e) {
+                out.println("Invalid stock quantity.");
+                return;
+            }
+            if (stock < Product.UNLIMITED) {
+                out.println("Invalid stock quantity.");
                 return;
             }
 
@@ -556,9 +1328,9 @@ public class MarketplaceServer {
                 System.out.println("Sending image upload request with filename: " + imageFileName);
                 out.println("SEND_IMAGE_NOW:" + imageFileName);
 
-                // Wait for confirmation
+                // Wait for confirmation; the image only lands in IMAGE_DIR once fully verified
                 String uploadStatus = in.readLine();
-                if (!"IMAGE_UPLOADED".equals(uploadStatus)) {
+                if (!"IMAGE_UPLOADED".equals(uploadStatus) || !new File(IMAGE_DIR + imageFileName).isFile()) {
                     out.println("Image upload failed.");
                     return;
                 }
@@ -566,17 +1338,88 @@ public class MarketplaceServer {
                 out.println("Expecting image upload to image server as: " + imageFileName);
             }
 
-            synchronized (PRODUCTS_DIR.intern()) {
-                File f = new File(PRODUCTS_DIR + currentUser + ".txt");
-                try (BufferedWriter bw = new BufferedWriter(new FileWriter(f, true))) {
-                    bw.write(name + "," + price + "," + imageFileName);
-                    bw.newLine();
-                }
+            List<Product> batch = new ArrayList<>();
+            batch.add(new Product(0, currentUser, name, priceCents, stock, imageFileName));
+            if (ProductCatalog.add(currentUser, batch).isEmpty()) {
+                out.println("You already list that exact product.");
+                return;
             }
 
             out.println("Product added successfully.");
         }
 
+        /**
+         * Reads CSV lines (name,price[,image[,stock]]) until END_IMPORT, validates all
+         * of them and appends the accepted ones to the seller's file in a single write.
+         */
+        void handleBulkImport() throws IOException {
+            if (readOnly()) return;
+            out.println("SEND_PRODUCT_CSV");
+            out.println("Send product lines as name,price,image,stock and END_IMPORT when done:");
+
+            List<Product> batch = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            int lineNo = 0;
+            String line;
+            while ((line = in.readLine()) != null && !"END_IMPORT".equals(line)) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || (lineNo == 1 && line.toLowerCase().startsWith("name,"))) {
+                    continue;
+                }
+                if (batch.size() >= ServerConfig.getInt("max_bulk_import")) {
+                    errors.add("line " + lineNo + ": import limit of " + ServerConfig.get("max_bulk_import")
+                            + " reached");
+                    continue;
+                }
+                Product parsed = parseProductCsv(currentUser, line);
+                if (parsed == null) {
+                    errors.add("line " + lineNo + ": " + line);
+                } else {
+                    batch.add(parsed);
+                }
+            }
+
+            int added = batch.isEmpty() ? 0 : ProductCatalog.add(currentUser, batch).size();
+
+            for (int i = 0; i < errors.size() && i < 10; i++) {
+                out.println("Rejected " + errors.get(i));
+            }
+            out.println("BULK_IMPORT_DONE: " + added + " added, " + (batch.size() - added) + " duplicates, "
+                    + errors.size() + " rejected");
+        }
+
+        static Product parseProductCsv(String seller, String line) {
+            String[] parts = line.split(",");
+            if (parts.length < 2 || parts.length > 4) return null;
+            String name = parts[0].trim();
+            long cents = Product.parseCents(parts[1]);
+            if (name.isEmpty() || cents < 0) return null;
+
+            String image = parts.length >= 3 && !parts[2].trim().isEmpty() ? parts[2].trim() : "none";
+            int stock = Product.UNLIMITED;
+            if (parts.length == 4) {
+                try {
+                    stock = Integer.parseInt(parts[3].trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (stock < Product.UNLIMITED) return null;
+            }
+            return new Product(0, seller, name, cents, stock, image);
+        }
+
+        void handleBulkExport() throws IOException {
+            int[] slots = ProductCatalog.listing(currentUser);
+            out.println("=== PRODUCT EXPORT ===");
+            out.println("name,price,image,stock");
+            for (int slot : slots) {
+                out.println(ProductCatalog.displayLine(slot) + "," + ProductCatalog.stock(slot));
+            }
+            out.println("===END OF EXPORT===");
+            out.println("Exported " + slots.length + " products.");
+        }
+
 
 
         private int indexOf(byte[] data, byte[] pattern) {
@@ -592,57 +1435,26 @@ public class MarketplaceServer {
 
 
         void handleDeleteProduct() throws IOException {
+            if (readOnly()) return;
             out.println("Enter product name to delete:");
             String name = in.readLine();
+            if (name == null) return;
 
-            File file = new File(PRODUCTS_DIR + currentUser + ".txt");
-            File temp = new File(PRODUCTS_DIR + currentUser + "_temp.txt");
-
-            try (BufferedReader reader = new BufferedReader(new FileReader(file));
-                 BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (!line.startsWith(name + ",")) {
-                        writer.write(line);
-                        writer.newLine();
-                    }
-                }
-            }
-
-            file.delete();
-            temp.renameTo(file);
-            out.println("Product deleted.");
+            int removed = ProductCatalog.removeByName(currentUser, name.trim());
+            out.println(removed > 0 ? "Product deleted." : "No product named '" + name + "' found.");
         }
 
         String[] getAllSellers() throws IOException {
-            List<String> sellers = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new FileReader(SELLERS_FILE))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(":");
-                    if (parts.length > 0) sellers.add(parts[0]);
-                }
-            }
-            return sellers.toArray(new String[0]);
+            return AccountStore.users(SELLERS_FILE).toArray(new String[0]);
         }
 
         String[] getProducts(String seller) throws IOException {
-            List<String> products = new ArrayList<>();
-            File file = new File("products/" + seller + ".txt");
-
-            if (file.exists()) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        line = line.trim();
-                        if (!line.isEmpty()) {
-                            products.add(line);
-                        }
-                    }
-                }
+            int[] slots = ProductCatalog.listing(seller);
+            String[] products = new String[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                products[i] = ProductCatalog.displayLine(slots[i]);
             }
-
-            return products.toArray(new String[0]);
+            return products;
         }
 
         void viewProducts(String seller) throws IOException {
@@ -658,74 +1470,106 @@ public class MarketplaceServer {
             out.println("Enter product name to search:");
             String query = in.readLine();
             if (query == null || query.trim().isEmpty()) return;
-
-            boolean found = false;
-            String[] sellers = getAllSellers();
-            for (String s : sellers) {
-                for (String p : getProducts(s)) {
-                    if (p.toLowerCase().contains(query.toLowerCase())) {
-                        if (!found) out.println("=== SEARCH RESULTS ===");
-                        found = true;
-                        out.println(s + ": " + p);
-                    }
+            TrendingTracker.SEARCHES.record(query.trim().toLowerCase());
+
+            List<String> results = ProductCatalog.search(getAllSellers(), query);
+            results.addAll(ClusterNode.searchPeers(query));
+            if (!results.isEmpty()) {
+                out.println("=== SEARCH RESULTS ===");
+                for (String r : results) {
+                    out.println(r);
                 }
             }
-            out.println(found ? "END_RESULTS" : "NOT AVAILABLE");
+            out.println(!results.isEmpty() ? "END_RESULTS" : "NOT AVAILABLE");
         }
 
         void recordTransaction(String from, String to, double amount, String note) throws IOException {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(TRANSACTIONS_FILE, true))) {
-                writer.write(from + "|" + to + "|" + amount + "|" + note + "|" + System.currentTimeMillis());
-                writer.newLine();
+            String line = transactionLine(from, to, amount, note);
+            synchronized (BALANCES_FILE.intern()) {
+                WriteAheadLog.batch().append(TRANSACTIONS_FILE, line).commit();
+                SalesAnalytics.recorded(Collections.singletonList(line));
+            }
+            publishTransaction(from, to, amount, note);
+        }
+
+        static String transactionLine(String from, String to, double amount, String note) {
+            return from + "|" + to + "|" + amount + "|" + note + "|" + System.currentTimeMillis();
+        }
+
+        static void publishTransaction(String from, String to, double amount, String note) {
+            String event = "TRANSACTION " + from + "|" + to + "|" + String.format("%.2f", amount) + "|" + note;
+            MarketplaceEvents.publishTo(to, event);
+            if (!from.equals(to)) {
+                MarketplaceEvents.publishTo(from, event);
             }
         }
 
         void viewTransactionHistory(String user) throws IOException {
             out.println("=== TRANSACTION HISTORY ===");
-            try (BufferedReader reader = new BufferedReader(new FileReader(TRANSACTIONS_FILE))) {
-                String line;
-                boolean has = false;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split("\\|");
-                    if (parts.length >= 4 && (parts[0].equals(user) || parts[1].equals(user))) {
-                        has = true;
-                        String direction = parts[0].equals(user) ? "To " + parts[1] : "From " + parts[0];
-                        out.println(direction + ": $" + parts[2] + " - " + parts[3]);
-                    }
+            List<Long> indexes = TransactionLog.recordsFor(user);
+            if (indexes.isEmpty()) {
+                out.println("No transactions.");
+            } else {
+                TransactionLog.Records records = TransactionLog.records();
+                int id = TransactionLog.idOf(user);
+                for (long r : indexes) {
+                    long cents = records.cents(r);
+                    int from = records.from(r);
+                    String direction = from == id ? "To " + TransactionLog.name(records.to(r))
+                            : "From " + TransactionLog.name(from);
+                    out.println(direction + ": $" + (cents / 100.0) + " - " + TransactionLog.name(records.note(r)));
                 }
-                if (!has) out.println("No transactions.");
+                long[] totals = TransactionLog.totalsFor(user);
+                out.println(String.format("Total received: $%.2f, total spent: $%.2f", totals[1] / 100.0,
+                        totals[2] / 100.0));
             }
             out.println("===END OF HISTORY===");
         }
 
+        void viewTrending() {
+            out.println("=== TRENDING ===");
+            for (TrendingTracker.Span span : TrendingTracker.Span.values()) {
+                printTrending("Most purchased, " + span.label + ":", TrendingTracker.PURCHASES.top(span, 5));
+            }
+            for (TrendingTracker.Span span : TrendingTracker.Span.values()) {
+                printTrending("Most searched, " + span.label + ":", TrendingTracker.SEARCHES.top(span, 5));
+            }
+            out.println("===END OF TRENDING===");
+        }
+
+        private void printTrending(String title, List<String> top) {
+            out.println(title);
+            if (top.isEmpty()) {
+                out.println("  (nothing yet)");
+            }
+            for (int i = 0; i < top.size(); i++) {
+                out.println("  #" + (i + 1) + " " + top.get(i));
+            }
+        }
+
+        void viewSalesAnalytics(String seller) throws IOException {
+            out.println("=== SALES ANALYTICS ===");
+            for (String line : SalesAnalytics.dashboard(seller)) {
+                out.println(line);
+            }
+            out.println("===END OF ANALYTICS===");
+        }
+
 
         void deleteAccount(String user) throws IOException {
             deleteFromFile(CLIENTS_FILE, user);
             deleteFromFile(SELLERS_FILE, user);
-            new File(PRODUCTS_DIR + user + ".txt").delete();
+            ProductCatalog.removeSeller(user);
             new File(CHATS_DIR + user + "_chat.txt").delete();
         }
 
         void deleteFromFile(String file, String user) throws IOException {
-            File input = new File(file);
-            File temp = new File(file + ".tmp");
-
-            try (BufferedReader reader = new BufferedReader(new FileReader(input));
-                 BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (!line.startsWith(user + ":")) {
-                        writer.write(line);
-                        writer.newLine();
-                    }
-                }
-            }
-
-            input.delete();
-            temp.renameTo(input);
+            WriteAheadLog.batch().remove(file, user).commit();
+            AccountStore.applied(file, user, null);
         }
 
         void handleClientChat() throws IOException {
+            if (readOnly()) return;
             String[] sellers = getAllSellers();
             out.println("=== AVAILABLE SELLERS ===");
             for (int i = 0; i < sellers.length; i++) {
@@ -747,6 +1591,7 @@ public class MarketplaceServer {
         }
 
         private void handleSellerChat() throws IOException {
+            if (readOnly()) return;
             File chatFolder = new File(CHATS_DIR);
             if (!chatFolder.exists() || !chatFolder.isDirectory()) {
                 out.println("No chat history folder found.");
@@ -827,25 +1672,8 @@ public class MarketplaceServer {
 
 
         void sendAllProductsToClient() throws IOException {
-            String[] sellers = getAllSellers();
-            List<String> allProducts = new ArrayList<>();
-
-            out.println("SELLER_PRODUCTS");
-
-            int counter = 1;
-            for (String seller : sellers) {
-                String[] products = getProducts(seller);
-                for (String product : products) {
-                    allProducts.add(counter + ". " + product);
-                    counter++;
-                }
-            }
-
-            for (String line : allProducts) {
-                out.println(line);
-            }
-
-            out.println("END_PRODUCTS");
+            sendProductPage(ProductCatalog.browse(null, ProductCatalog.Sort.NAME, 0, Long.MAX_VALUE, null,
+                    ServerConfig.getInt("page_size")), true);
         }
 
 
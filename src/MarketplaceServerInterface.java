@@ -17,6 +17,10 @@ public interface MarketplaceServerInterface {
     public static final String SELLERS_FILE = "sellers.txt";
     public static final String BALANCES_FILE = "balances.txt";
     public static final String TRANSACTIONS_FILE = "transactions.txt";
+    public static final String REQUESTS_FILE = "requests.txt";
     public static final String IMAGE_DIR = "images/";
+    public static final int SERVER_PORT = 8881;
+    public static final int IMAGE_PORT = 8882;
+    public static final int HTTP_PORT = 8883;
 
 }
@@ -0,0 +1,121 @@
+package src;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * One product listing. Prices are kept in whole cents and every product
+ * has a stable numeric id. Stored in products/<seller>.txt as
+ * name,price,image,id,stock so older name,price,image readers still work.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class Product {
+    public static final int UNLIMITED = -1;
+
+    private final long id;
+    private final String seller;
+    private final String name;
+    private final long priceCents;
+    private final int stock;
+    private final String image;
+
+    public Product(long id, String seller, String name, long priceCents, int stock, String image) {
+        this.id = id;
+        this.seller = seller;
+        this.name = name;
+        this.priceCents = priceCents;
+        this.stock = stock;
+        this.image = image;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSeller() {
+        return seller;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPriceCents() {
+        return priceCents;
+    }
+
+    public double getPrice() {
+        return priceCents / 100.0;
+    }
+
+    public int getStock() {
+        return stock;
+    }
+
+    public String getImage() {
+        return image;
+    }
+
+    public Product withId(long newId) {
+        return new Product(newId, seller, name, priceCents, stock, image);
+    }
+
+    public Product withStock(int newStock) {
+        return new Product(id, seller, name, priceCents, newStock, image);
+    }
+
+    // what clients see: name,price,image
+    public String toDisplayLine() {
+        return name + "," + formatCents(priceCents) + "," + image;
+    }
+
+    public String toFileLine() {
+        return toDisplayLine() + "," + id + "," + stock;
+    }
+
+    public static String formatCents(long cents) {
+        String sign = cents < 0 ? "-" : "";
+        long abs = Math.abs(cents);
+        long fraction = abs % 100;
+        return sign + (abs / 100) + "." + (fraction < 10 ? "0" : "") + fraction;
+    }
+
+    /**
+     * Parses a price like "12.5" into cents, or returns -1 if it isn't a valid price.
+     */
+    public static long parseCents(String price) {
+        try {
+            double value = Double.parseDouble(price.trim());
+            if (value < 0 || Double.isNaN(value) || Double.isInfinite(value) || value > 1e13) {
+                return -1;
+            }
+            return Math.round(value * 100);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a line from a seller file. Old three-field lines come back with
+     * id 0 (not yet assigned) and unlimited stock.
+     */
+    public static Product parse(String seller, String line) {
+        String[] parts = line.trim().split(",");
+        if (parts.length < 2) return null;
+
+        String name = parts[0].trim();
+        long cents = parseCents(parts[1]);
+        if (name.isEmpty() || cents < 0) return null;
+
+        String image = parts.length >= 3 && !parts[2].trim().isEmpty() ? parts[2].trim() : "none";
+        long id = 0;
+        int stock = UNLIMITED;
+        try {
+            if (parts.length >= 4) id = Long.parseLong(parts[3].trim());
+            if (parts.length >= 5) stock = Integer.parseInt(parts[4].trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new Product(Math.max(id, 0), seller, name, cents, Math.max(stock, UNLIMITED), image);
+    }
+}
@@ -0,0 +1,808 @@
+package src;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * In-memory catalog of every listing, kept column by column in primitive
+ * arrays. A product lives in slot (id - 1), so finding a product by id is a
+ * single array index and listing a seller is a walk over a small int[].
+ * products/catalog.bin is a compact binary copy that lets startup skip
+ * reparsing seller files that haven't changed since it was written.
+ * Stock lives in fixed-size atomic pages that never move when the catalog
+ * grows, so purchases decrement it with a CAS instead of taking a lock.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class ProductCatalog {
+    static final File BINARY_FILE = new File(MarketplaceServerInterface.PRODUCTS_DIR + "catalog.bin");
+    private static final int MAGIC = 0x4D4B5443;
+    private static final int VERSION = 1;
+    private static final int MAX_SLOTS = 1 << 24;
+    private static final int STOCK_PAGE = 1024;
+    private static final int[] EMPTY = new int[0];
+
+    private static long[] priceCents = new long[1024];
+    private static volatile AtomicIntegerArray[] stockPages = {new AtomicIntegerArray(STOCK_PAGE)};
+    // stock as written in the seller's file, without the units reserved in memory; what catalog.bin saves
+    private static int[] fileStock = new int[1024];
+    private static String[] names = new String[1024];
+    private static String[] lowerNames = new String[1024];
+    private static String[] images = new String[1024];
+    private static String[] sellers = new String[1024];
+    private static boolean[] live = new boolean[1024];
+    private static long nextId = 1;
+
+    // per seller: slots in listing order, and name/price/image keys for dedup
+    private static final Map<String, int[]> BY_SELLER = new HashMap<>();
+    private static final Map<String, Map<String, Integer>> KEYS = new HashMap<>();
+    private static final Map<String, Long> STAMPS = new ConcurrentHashMap<>();
+
+    public static final int VIEW_CACHE = 1024;
+
+    // bumped whenever a listing is added or removed; sorted views are rebuilt lazily after it moves
+    private static long version = 0;
+    // least recently used views go first once there are more than sorted_view_cache
+    private static final Map<String, SortedView> VIEWS = new LinkedHashMap<String, SortedView>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SortedView> eldest) {
+            return size() > ServerConfig.getInt("sorted_view_cache");
+        }
+    };
+
+    private static final Object LOAD_LOCK = new Object();
+    private static volatile boolean loaded = false;
+    private static volatile boolean dirty = false;
+
+    public enum Sort {
+        PRICE_LOW, PRICE_HIGH, NEWEST, NAME
+    }
+
+    /**
+     * One page of browse results. nextCursor is null on the last page.
+     */
+    public static class Page {
+        public final int[] slots;
+        public final String nextCursor;
+
+        Page(int[] slots, String nextCursor) {
+            this.slots = slots;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    private static class SortedView {
+        final Object source;
+        final int[] slots;
+
+        SortedView(Object source, int[] slots) {
+            this.source = source;
+            this.slots = slots;
+        }
+    }
+
+    private ProductCatalog() {
+    }
+
+    /**
+     * Loads every seller file once, preferring catalog.bin for sellers whose
+     * text file is unchanged since the binary copy was written.
+     */
+    public static void ensureLoaded() throws IOException {
+        if (loaded) return;
+        synchronized (LOAD_LOCK) {
+            if (loaded) return;
+
+            Map<String, List<Product>> all = new LinkedHashMap<>();
+            Map<String, List<Product>> fromBinary = readBinary(BINARY_FILE);
+            File[] files = new File(MarketplaceServerInterface.PRODUCTS_DIR).listFiles((dir, n) -> n.endsWith(".txt"));
+            long maxId = 0;
+            if (files != null) {
+                for (File f : files) {
+                    String seller = f.getName().substring(0, f.getName().length() - 4);
+                    List<Product> products = fromBinary.get(seller);
+                    if (products == null) {
+                        products = parseAll(seller, CatalogStore.readLines(seller));
+                    }
+                    all.put(seller, products);
+                    for (Product p : products) {
+                        if (p.getId() <= MAX_SLOTS) maxId = Math.max(maxId, p.getId());
+                    }
+                }
+            }
+
+            synchronized (ProductCatalog.class) {
+                nextId = Math.max(nextId, maxId + 1);
+            }
+            for (Map.Entry<String, List<Product>> e : all.entrySet()) {
+                install(e.getKey(), e.getValue());
+            }
+            loaded = true;
+        }
+    }
+
+    private static List<Product> parseAll(String seller, List<String> lines) {
+        List<Product> products = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            Product p = Product.parse(seller, line);
+            if (p != null) products.add(p);
+        }
+        return products;
+    }
+
+    // caller must not hold any seller lock except this seller's
+    private static void install(String seller, List<Product> products) throws IOException {
+        ReentrantLock lock = CatalogStore.lockFor(seller);
+        lock.lock();
+        try {
+            if (replaceSeller(seller, products)) {
+                // ids were assigned or duplicates dropped, so write them back
+                CatalogStore.rewrite(seller, fileLines(seller));
+            }
+            STAMPS.put(seller, CatalogStore.stampOf(seller));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // reloads the seller if their file changed behind our back; caller holds the seller lock
+    private static void refresh(String seller) throws IOException {
+        Long known = STAMPS.get(seller);
+        if (known == null || known != CatalogStore.stampOf(seller)) {
+            install(seller, parseAll(seller, CatalogStore.readLines(seller)));
+        }
+    }
+
+    private static void refreshIfStale(String seller) throws IOException {
+        ensureLoaded();
+        Long known = STAMPS.get(seller);
+        if (known != null && known == CatalogStore.stampOf(seller)) return;
+
+        ReentrantLock lock = CatalogStore.lockFor(seller);
+        lock.lock();
+        try {
+            refresh(seller);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds new listings for a seller, skipping exact duplicates.
+     *
+     * @return the products that were actually added, with their ids
+     */
+    public static List<Product> add(String seller, List<Product> drafts) throws IOException {
+        ensureLoaded();
+        ReentrantLock lock = CatalogStore.lockFor(seller);
+        lock.lock();
+        try {
+            refresh(seller);
+            List<Product> accepted = assignIds(seller, drafts);
+            if (accepted.isEmpty()) return accepted;
+
+            List<String> lines = new ArrayList<>(accepted.size());
+            for (Product p : accepted) {
+                lines.add(p.toFileLine());
+            }
+            CatalogStore.append(seller, lines);
+            publish(seller, accepted);
+            STAMPS.put(seller, CatalogStore.stampOf(seller));
+            long v = version();
+            for (Product p : accepted) {
+                MarketplaceEvents.publishAll("CATALOG " + v + " ADD " + p.getId() + " " + p.toDisplayLine() + "," + seller);
+            }
+            return accepted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every listing of the seller with exactly this name.
+     *
+     * @return number of listings removed
+     */
+    public static int removeByName(String seller, String name) throws IOException {
+        ensureLoaded();
+        ReentrantLock lock = CatalogStore.lockFor(seller);
+        lock.lock();
+        try {
+            refresh(seller);
+            List<Long> removedIds = new ArrayList<>();
+            for (Product p : products(seller)) {
+                if (p.getName().equals(name)) {
+                    removedIds.add(p.getId());
+                }
+            }
+            if (removedIds.isEmpty()) return 0;
+
+            CatalogStore.removeIds(seller, removedIds);
+            unpublish(seller, removedIds);
+            STAMPS.put(seller, CatalogStore.stampOf(seller));
+            long v = version();
+            for (long id : removedIds) {
+                MarketplaceEvents.publishAll("CATALOG " + v + " REMOVE " + id + " " + seller);
+            }
+            return removedIds.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits a batch that takes sold stock off these sellers' files (see
+     * WriteAheadLog.Batch#sold). Their locks are held throughout so the
+     * rewritten files aren't mistaken for outside edits and reloaded over
+     * stock that is still reserved.
+     */
+    public static void commitSale(WriteAheadLog.Batch batch, Collection<String> sellers,
+                                  List<Inventory.Reservation> sold) throws IOException {
+        ensureLoaded();
+        List<ReentrantLock> locks = CatalogStore.locksFor(sellers);
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            for (String seller : sellers) {
+                refresh(seller);
+            }
+            batch.commit();
+            synchronized (ProductCatalog.class) {
+                for (Inventory.Reservation r : sold) {
+                    int slot = (int) (r.getProductId() - 1);
+                    if (slot < live.length && live[slot] && fileStock[slot] != Product.UNLIMITED) {
+                        fileStock[slot] = Math.max(0, fileStock[slot] - r.getQuantity());
+                    }
+                }
+                for (String seller : sellers) {
+                    STAMPS.put(seller, CatalogStore.stampOf(seller));
+                }
+            }
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    public static void removeSeller(String seller) throws IOException {
+        ensureLoaded();
+        ReentrantLock lock = CatalogStore.lockFor(seller);
+        lock.lock();
+        try {
+            CatalogStore.deleteSeller(seller);
+            replaceSeller(seller, Collections.<Product>emptyList());
+            STAMPS.put(seller, CatalogStore.stampOf(seller));
+            MarketplaceEvents.publishAll("CATALOG " + version() + " CLEAR " + seller);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Slots of the seller's live listings in listing order. The array is never
+     * modified after it is returned, so callers may keep iterating it.
+     */
+    public static int[] listing(String seller) throws IOException {
+        refreshIfStale(seller);
+        synchronized (ProductCatalog.class) {
+            int[] slots = BY_SELLER.get(seller);
+            return slots == null ? EMPTY : slots;
+        }
+    }
+
+    public static List<String> search(String[] sellerNames, String query) throws IOException {
+        String q = query.toLowerCase();
+        List<String> results = new ArrayList<>();
+        for (String s : sellerNames) {
+            int[] slots = listing(s);
+            synchronized (ProductCatalog.class) {
+                for (int slot : slots) {
+                    if (live[slot] && lowerNames[slot].contains(q)) {
+                        results.add(s + ": " + displayLine(slot));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns one page of in-stock listings, for one seller or (seller == null)
+     * the whole marketplace, sorted and filtered to [minCents, maxCents].
+     * The cursor is the nextCursor of the previous page, or null for the first.
+     */
+    public static Page browse(String seller, Sort sort, long minCents, long maxCents,
+                              String cursor, int pageSize) throws IOException {
+        if (seller != null) refreshIfStale(seller);
+        else ensureLoaded();
+
+        synchronized (ProductCatalog.class) {
+            int[] view = sortedView(seller, sort);
+            int start = cursor == null ? firstCandidate(view, sort, minCents) : afterCursor(view, sort, cursor);
+
+            int[] page = new int[pageSize];
+            int n = 0;
+            int i = start;
+            for (; i < view.length && n < pageSize; i++) {
+                int slot = view[i];
+                long cents = priceCents[slot];
+                if (sort == Sort.PRICE_LOW && cents > maxCents) break;
+                if (sort == Sort.PRICE_HIGH && cents < minCents) break;
+                if (cents < minCents || cents > maxCents || stock(slot) == 0) continue;
+                page[n++] = slot;
+            }
+
+            String next = null;
+            if (n == pageSize && i < view.length) {
+                next = cursorFor(sort, page[n - 1]);
+            }
+            return new Page(Arrays.copyOf(page, n), next);
+        }
+    }
+
+    private static int[] sortedView(String seller, Sort sort) {
+        String key = (seller == null ? "*" : "s:" + seller) + "|" + sort;
+        Object source = seller == null ? (Object) version : BY_SELLER.get(seller);
+        SortedView cached = VIEWS.get(key);
+        if (cached != null && (seller == null ? cached.source.equals(source) : cached.source == source)) {
+            return cached.slots;
+        }
+
+        int[] base;
+        if (seller != null) {
+            base = source == null ? EMPTY : (int[]) source;
+        } else {
+            int count = 0;
+            for (int[] slots : BY_SELLER.values()) count += slots.length;
+            base = new int[count];
+            int i = 0;
+            for (int[] slots : BY_SELLER.values()) {
+                System.arraycopy(slots, 0, base, i, slots.length);
+                i += slots.length;
+            }
+        }
+
+        Integer[] boxed = new Integer[base.length];
+        for (int i = 0; i < base.length; i++) boxed[i] = base[i];
+        Arrays.sort(boxed, comparatorFor(sort));
+        int[] sorted = new int[boxed.length];
+        for (int i = 0; i < boxed.length; i++) sorted[i] = boxed[i];
+
+        if (source != null) VIEWS.put(key, new SortedView(source, sorted));
+        return sorted;
+    }
+
+    private static Comparator<Integer> comparatorFor(Sort sort) {
+        switch (sort) {
+            case PRICE_LOW:
+                return (a, b) -> priceCents[a] != priceCents[b] ? Long.compare(priceCents[a], priceCents[b]) : Integer.compare(a, b);
+            case PRICE_HIGH:
+                return (a, b) -> priceCents[a] != priceCents[b] ? Long.compare(priceCents[b], priceCents[a]) : Integer.compare(a, b);
+            case NAME:
+                return (a, b) -> {
+                    int c = lowerNames[a].compareTo(lowerNames[b]);
+                    return c != 0 ? c : Integer.compare(a, b);
+                };
+            default:
+                return (a, b) -> Integer.compare(b, a);
+        }
+    }
+
+    private static int firstCandidate(int[] view, Sort sort, long minCents) {
+        if (sort != Sort.PRICE_LOW) return 0;
+        int lo = 0;
+        int hi = view.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (priceCents[view[mid]] < minCents) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // cursors carry the sort key of the last row, so they stay valid when the view is rebuilt
+    private static String cursorFor(Sort sort, int slot) {
+        switch (sort) {
+            case PRICE_LOW:
+            case PRICE_HIGH:
+                return "P" + priceCents[slot] + "." + slot;
+            case NAME:
+                return "A" + slot + "." + Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(lowerNames[slot].getBytes(StandardCharsets.UTF_8));
+            default:
+                return "N" + slot;
+        }
+    }
+
+    private static int afterCursor(int[] view, Sort sort, String cursor) {
+        long keyCents = 0;
+        String keyName = "";
+        int keySlot;
+        try {
+            if (sort == Sort.NAME) {
+                int dot = cursor.indexOf('.');
+                keySlot = Integer.parseInt(cursor.substring(1, dot));
+                keyName = new String(Base64.getUrlDecoder().decode(cursor.substring(dot + 1)),
+                        StandardCharsets.UTF_8);
+            } else if (sort == Sort.NEWEST) {
+                keySlot = Integer.parseInt(cursor.substring(1));
+            } else {
+                int dot = cursor.indexOf('.');
+                keyCents = Long.parseLong(cursor.substring(1, dot));
+                keySlot = Integer.parseInt(cursor.substring(dot + 1));
+            }
+        } catch (RuntimeException e) {
+            return 0;
+        }
+
+        // first index whose row sorts after the cursor row
+        int lo = 0;
+        int hi = view.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int slot = view[mid];
+            int c;
+            switch (sort) {
+                case PRICE_LOW:
+                    c = priceCents[slot] != keyCents ? Long.compare(priceCents[slot], keyCents) : Integer.compare(slot, keySlot);
+                    break;
+                case PRICE_HIGH:
+                    c = priceCents[slot] != keyCents ? Long.compare(keyCents, priceCents[slot]) : Integer.compare(slot, keySlot);
+                    break;
+                case NAME:
+                    c = lowerNames[slot].compareTo(keyName);
+                    if (c == 0) c = Integer.compare(slot, keySlot);
+                    break;
+                default:
+                    c = Integer.compare(keySlot, slot);
+            }
+            if (c <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * The body of a product page as sent to clients: numbered display lines,
+     * then an IMG: line per image, then MORE_PRODUCTS if there is a next page.
+     */
+    public static synchronized List<String> pageLines(Page page, boolean showSeller) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < page.slots.length; i++) {
+            int slot = page.slots[i];
+            lines.add((i + 1) + ". " + displayLine(slot) + (showSeller ? "," + sellers[slot] : ""));
+        }
+        for (int slot : page.slots) {
+            if (!images[slot].equalsIgnoreCase("none")) {
+                lines.add("IMG:" + images[slot]);
+            }
+        }
+        if (page.nextCursor != null) {
+            lines.add("MORE_PRODUCTS");
+        }
+        return lines;
+    }
+
+    /**
+     * Bumped on every change to the set of listings; catalog events carry it
+     * so clients can tell which snapshot a change applies on top of.
+     */
+    public static synchronized long version() {
+        return version;
+    }
+
+    public static synchronized String sellerOf(int slot) {
+        return sellers[slot];
+    }
+
+    public static long idOf(int slot) {
+        return slot + 1L;
+    }
+
+    public static synchronized Product get(long id) {
+        if (id <= 0 || id > live.length) return null;
+        int slot = (int) (id - 1);
+        return live[slot] ? productAt(slot) : null;
+    }
+
+    public static synchronized String displayLine(int slot) {
+        return names[slot] + "," + Product.formatCents(priceCents[slot]) + "," + images[slot];
+    }
+
+    public static synchronized String image(int slot) {
+        return images[slot];
+    }
+
+    public static int stock(int slot) {
+        return stockPages[slot / STOCK_PAGE].get(slot % STOCK_PAGE);
+    }
+
+    /**
+     * Takes qty units of stock without locking.
+     *
+     * @return false if the product is gone or doesn't have qty left
+     */
+    public static boolean takeStock(long id, int qty) {
+        if (id <= 0 || id > MAX_SLOTS) return false;
+        int slot = (int) (id - 1);
+        AtomicIntegerArray[] pages = stockPages;
+        if (slot / STOCK_PAGE >= pages.length) return false;
+        AtomicIntegerArray page = pages[slot / STOCK_PAGE];
+        int i = slot % STOCK_PAGE;
+        while (true) {
+            int current = page.get(i);
+            if (current == Product.UNLIMITED) return isLive(slot);
+            if (current < qty) return false;
+            if (page.compareAndSet(i, current, current - qty)) return true;
+        }
+    }
+
+    public static void returnStock(long id, int qty) {
+        if (id <= 0 || id > MAX_SLOTS) return;
+        int slot = (int) (id - 1);
+        AtomicIntegerArray[] pages = stockPages;
+        if (slot / STOCK_PAGE >= pages.length) return;
+        AtomicIntegerArray page = pages[slot / STOCK_PAGE];
+        int i = slot % STOCK_PAGE;
+        while (true) {
+            int current = page.get(i);
+            if (current == Product.UNLIMITED || page.compareAndSet(i, current, current + qty)) return;
+        }
+    }
+
+    private static synchronized boolean isLive(int slot) {
+        return slot < live.length && live[slot];
+    }
+
+    public static synchronized List<Product> products(String seller) {
+        int[] slots = BY_SELLER.get(seller);
+        if (slots == null) return new ArrayList<>();
+        List<Product> result = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            result.add(productAt(slot));
+        }
+        return result;
+    }
+
+    private static Product productAt(int slot) {
+        return new Product(idOf(slot), sellers[slot], names[slot], priceCents[slot], stock(slot), images[slot]);
+    }
+
+    private static String keyOf(Product p) {
+        return p.getName() + "," + p.getPriceCents() + "," + p.getImage();
+    }
+
+    private static synchronized List<String> fileLines(String seller) {
+        List<String> lines = new ArrayList<>();
+        for (Product p : products(seller)) {
+            lines.add(p.toFileLine());
+        }
+        return lines;
+    }
+
+    private static synchronized List<Product> assignIds(String seller, List<Product> drafts) {
+        Map<String, Integer> keys = KEYS.get(seller);
+        Map<String, Boolean> seen = new HashMap<>();
+        List<Product> accepted = new ArrayList<>();
+        for (Product p : drafts) {
+            String key = keyOf(p);
+            if ((keys != null && keys.containsKey(key)) || seen.put(key, Boolean.TRUE) != null) {
+                continue;
+            }
+            accepted.add(p.withId(nextId++));
+        }
+        return accepted;
+    }
+
+    private static synchronized void unpublish(String seller, List<Long> ids) {
+        int[] old = BY_SELLER.get(seller);
+        if (old == null) return;
+        Map<String, Integer> keys = KEYS.get(seller);
+        int[] slots = new int[old.length];
+        int n = 0;
+        for (int slot : old) {
+            if (ids.contains(idOf(slot))) {
+                if (keys != null) keys.remove(keyOf(productAt(slot)));
+                clear(slot);
+            } else {
+                slots[n++] = slot;
+            }
+        }
+        BY_SELLER.put(seller, Arrays.copyOf(slots, n));
+        version++;
+        dirty = true;
+    }
+
+    private static synchronized void publish(String seller, List<Product> added) {
+        int[] old = BY_SELLER.get(seller);
+        int[] slots = old == null ? new int[added.size()] : Arrays.copyOf(old, old.length + added.size());
+        int i = old == null ? 0 : old.length;
+        Map<String, Integer> keys = KEYS.computeIfAbsent(seller, k -> new HashMap<>());
+        for (Product p : added) {
+            int slot = put(p);
+            slots[i++] = slot;
+            keys.put(keyOf(p), slot);
+        }
+        BY_SELLER.put(seller, slots);
+        version++;
+        dirty = true;
+    }
+
+    /**
+     * Swaps the seller's listings for the given products.
+     *
+     * @return true if any id had to be (re)assigned or a duplicate was dropped
+     */
+    private static synchronized boolean replaceSeller(String seller, List<Product> products) {
+        int[] old = BY_SELLER.remove(seller);
+        if (old != null) {
+            for (int slot : old) {
+                clear(slot);
+            }
+        }
+        KEYS.remove(seller);
+
+        boolean changed = false;
+        Map<String, Integer> keys = new HashMap<>();
+        int[] slots = new int[products.size()];
+        int n = 0;
+        for (Product p : products) {
+            String key = keyOf(p);
+            if (keys.containsKey(key)) {
+                changed = true;
+                continue;
+            }
+            long id = p.getId();
+            if (id <= 0 || id > MAX_SLOTS || (id <= live.length && live[(int) (id - 1)])) {
+                id = nextId++;
+                changed = true;
+            }
+            nextId = Math.max(nextId, id + 1);
+            int slot = put(new Product(id, seller, p.getName(), p.getPriceCents(), p.getStock(), p.getImage()));
+            keys.put(key, slot);
+            slots[n++] = slot;
+        }
+        if (n > 0) {
+            BY_SELLER.put(seller, Arrays.copyOf(slots, n));
+            KEYS.put(seller, keys);
+        }
+        version++;
+        dirty = true;
+        return changed;
+    }
+
+    private static int put(Product p) {
+        int slot = (int) (p.getId() - 1);
+        ensureCapacity(slot);
+        priceCents[slot] = p.getPriceCents();
+        stockPages[slot / STOCK_PAGE].set(slot % STOCK_PAGE, p.getStock());
+        fileStock[slot] = p.getStock();
+        names[slot] = p.getName();
+        lowerNames[slot] = p.getName().toLowerCase();
+        images[slot] = p.getImage();
+        sellers[slot] = p.getSeller();
+        live[slot] = true;
+        return slot;
+    }
+
+    private static void clear(int slot) {
+        live[slot] = false;
+        stockPages[slot / STOCK_PAGE].set(slot % STOCK_PAGE, 0);
+        fileStock[slot] = 0;
+        names[slot] = null;
+        lowerNames[slot] = null;
+        images[slot] = null;
+        sellers[slot] = null;
+    }
+
+    private static void ensureCapacity(int slot) {
+        if (slot < live.length) return;
+        int cap = Math.max(live.length * 2, slot + 1);
+        priceCents = Arrays.copyOf(priceCents, cap);
+        fileStock = Arrays.copyOf(fileStock, cap);
+        names = Arrays.copyOf(names, cap);
+        lowerNames = Arrays.copyOf(lowerNames, cap);
+        images = Arrays.copyOf(images, cap);
+        sellers = Arrays.copyOf(sellers, cap);
+        live = Arrays.copyOf(live, cap);
+
+        int pageCount = (cap + STOCK_PAGE - 1) / STOCK_PAGE;
+        AtomicIntegerArray[] pages = Arrays.copyOf(stockPages, pageCount);
+        for (int i = stockPages.length; i < pageCount; i++) {
+            pages[i] = new AtomicIntegerArray(STOCK_PAGE);
+        }
+        stockPages = pages;
+    }
+
+    public static void saveBinaryIfDirty() throws IOException {
+        if (dirty) saveBinary(BINARY_FILE);
+    }
+
+    /**
+     * Layout: magic, version, nextId, seller count, then per seller its name,
+     * file stamp and product count followed by id, name, cents, stock, image.
+     * The stock is the file's, so units reserved when it was saved aren't
+     * lost when it's read back after a restart.
+     */
+    public static void saveBinary(File target) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (ProductCatalog.class) {
+            dirty = false;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nextId);
+            out.writeInt(BY_SELLER.size());
+            for (Map.Entry<String, int[]> e : BY_SELLER.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(STAMPS.getOrDefault(e.getKey(), -1L));
+                out.writeInt(e.getValue().length);
+                for (int slot : e.getValue()) {
+                    out.writeLong(idOf(slot));
+                    out.writeUTF(names[slot]);
+                    out.writeLong(priceCents[slot]);
+                    out.writeInt(fileStock[slot]);
+                    out.writeUTF(images[slot]);
+                }
+            }
+        }
+        out.flush();
+        AtomicFiles.writeBytes(target, bytes.toByteArray());
+    }
+
+    /**
+     * Reads catalog.bin, returning only sellers whose text file still has the
+     * stamp recorded in it. Any problem with the file just means a full reparse.
+     */
+    static Map<String, List<Product>> readBinary(File source) {
+        Map<String, List<Product>> result = new HashMap<>();
+        if (!source.exists()) return result;
+
+        try (DataInputStream in = MappedInput.open(source)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return result;
+            long storedNextId = in.readLong();
+            int sellerCount = in.readInt();
+            for (int i = 0; i < sellerCount; i++) {
+                String seller = in.readUTF();
+                long stamp = in.readLong();
+                int count = in.readInt();
+                List<Product> products = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    long id = in.readLong();
+                    String name = in.readUTF();
+                    long cents = in.readLong();
+                    int qty = in.readInt();
+                    String image = in.readUTF();
+                    products.add(new Product(id, seller, name, cents, qty, image));
+                }
+                if (stamp == CatalogStore.stampOf(seller)) {
+                    result.put(seller, products);
+                }
+            }
+            synchronized (ProductCatalog.class) {
+                nextId = Math.max(nextId, storedNextId);
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable " + source + ": " + e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,209 @@
+package src;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Admission control for session requests. Each user gets a token bucket per
+ * kind of operation, so one client looping searches or top-ups can't use
+ * more than its share. On top of that the server sheds load: while too many
+ * sessions are busy at once, or requests have been slow lately, everything
+ * but purchases gets a BUSY answer until things calm down.
+ *
+ * Load is measured by TrackedReader: a session counts as busy from the time
+ * a line arrives until it asks for the next one, so time spent waiting on
+ * the user doesn't count. Sessions waiting for a purchase to be confirmed
+ * are counted on their own, so a drain can let them finish.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class RateLimiter {
+    public static final String BUSY_PREFIX = "BUSY: ";
+    public static final int MAX_BUSY_SESSIONS = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int MAX_BUCKETS = 10_000;
+    private static final long IDLE_BUCKET_NANOS = 60_000_000_000L;
+    private static final long SWEEP_NANOS = 1_000_000_000L;
+
+    /**
+     * Operation classes, each with its own refill rate (per second) and
+     * burst. These are the defaults; ServerConfig has the current values.
+     */
+    public enum Op {
+        LOGIN(1, 5),
+        SEARCH(5, 10),
+        READ(5, 20),
+        WALLET(1, 3),
+        PURCHASE(5, 10),
+        WRITE(2, 5),
+        CHAT(2, 10);
+
+        final double perSecond;
+        final int burst;
+
+        Op(double perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        double ratePerSecond() {
+            return ServerConfig.getDouble("rate_" + name().toLowerCase() + "_per_second");
+        }
+
+        int burstSize() {
+            return ServerConfig.getInt("rate_" + name().toLowerCase() + "_burst");
+        }
+    }
+
+    private static class Bucket {
+        double tokens;
+        long refilledAt;
+
+        Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+
+        synchronized boolean take(Op op, long now) {
+            tokens = Math.min(op.burstSize(), tokens + (now - refilledAt) * op.ratePerSecond() / 1e9);
+            refilledAt = now;
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+
+        // idle this long means full again, so dropping it loses nothing
+        synchronized boolean idle(long now) {
+            return now - refilledAt > IDLE_BUCKET_NANOS;
+        }
+    }
+
+    private static final Map<String, Bucket> BUCKETS = new ConcurrentHashMap<>();
+    private static final AtomicInteger BUSY_SESSIONS = new AtomicInteger();
+    private static final AtomicInteger CONFIRMING = new AtomicInteger();
+    // moving average of the time sessions take to handle a line
+    private static final AtomicLong AVERAGE_NANOS = new AtomicLong();
+    private static final AtomicLong RATE_LIMITED = new AtomicLong();
+    private static final AtomicLong SHED = new AtomicLong();
+    // when the buckets were last swept, so a full map is swept at most once a second
+    private static final AtomicLong SWEPT_AT = new AtomicLong(System.nanoTime());
+
+    private RateLimiter() {
+    }
+
+    /**
+     * @param key the user, or the remote address before login
+     * @return null if the request may go ahead, otherwise the BUSY line to send back
+     */
+    public static String admit(String key, Op op) {
+        if (op != Op.PURCHASE && overloaded()) {
+            SHED.incrementAndGet();
+            return BUSY_PREFIX + "The server is busy right now, please try again shortly.";
+        }
+        long now = System.nanoTime();
+        long swept = SWEPT_AT.get();
+        if (BUCKETS.size() > MAX_BUCKETS && now - swept > SWEEP_NANOS && SWEPT_AT.compareAndSet(swept, now)) {
+            sweep(now);
+        }
+        Bucket bucket = BUCKETS.computeIfAbsent(op.name() + ":" + key, k -> new Bucket(op.burstSize(), now));
+        if (!bucket.take(op, now)) {
+            RATE_LIMITED.incrementAndGet();
+            return BUSY_PREFIX + "Too many requests, please wait a moment and try again.";
+        }
+        return null;
+    }
+
+    public static boolean overloaded() {
+        int maxBusy = ServerConfig.getInt("max_busy_sessions");
+        return BUSY_SESSIONS.get() > (maxBusy > 0 ? maxBusy : MAX_BUSY_SESSIONS)
+                || AVERAGE_NANOS.get() > ServerConfig.getLong("max_latency_millis") * 1_000_000L;
+    }
+
+    /**
+     * @return {busy sessions, average handling millis, rate limited, shed}
+     */
+    public static long[] stats() {
+        return new long[] {BUSY_SESSIONS.get(), AVERAGE_NANOS.get() / 1_000_000, RATE_LIMITED.get(), SHED.get()};
+    }
+
+    /**
+     * @return sessions waiting for the user to confirm a purchase
+     */
+    public static int confirming() {
+        return CONFIRMING.get();
+    }
+
+    private static void sweep(long now) {
+        BUCKETS.entrySet().removeIf(e -> e.getValue().idle(now));
+    }
+
+    private static void handled(long nanos) {
+        // weight 1/16 for the newest sample
+        AVERAGE_NANOS.accumulateAndGet(nanos, (average, sample) -> average + (sample - average) / 16);
+    }
+
+    /**
+     * Session reader that tracks how many sessions are busy and how long each
+     * line takes to handle.
+     */
+    public static class TrackedReader extends BufferedReader {
+        private long lineAt = -1;
+        private volatile long lastLineMillis = System.currentTimeMillis();
+
+        public TrackedReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            finishLine();
+            String line = super.readLine();
+            if (line != null) {
+                lastLineMillis = System.currentTimeMillis();
+                lineAt = System.nanoTime();
+                BUSY_SESSIONS.incrementAndGet();
+            }
+            return line;
+        }
+
+        /**
+         * Reads the answer to a purchase confirmation, counted in
+         * confirming() until it arrives or the read times out.
+         */
+        public String readConfirmation() throws IOException {
+            finishLine();
+            CONFIRMING.incrementAndGet();
+            try {
+                return readLine();
+            } finally {
+                CONFIRMING.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return when the last line arrived (or the reader was made)
+         */
+        public long lastActivity() {
+            return lastLineMillis;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finishLine();
+            super.close();
+        }
+
+        private void finishLine() {
+            if (lineAt < 0) return;
+            handled(System.nanoTime() - lineAt);
+            BUSY_SESSIONS.decrementAndGet();
+            lineAt = -1;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package src;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Streams the primary's changes to read replicas. Every WriteAheadLog record
+ * is sent as it is committed, along with the files that change outside the
+ * log (stock rewrites of product files, uploaded images). A replica logs
+ * and replays the records exactly like crash recovery does, so it can
+ * restart or reconnect at any point and pick up from its last record.
+ *
+ * The primary keeps recent frames in a backlog; a replica that is further
+ * behind than that (or brand new) first gets a snapshot of the data files
+ * taken under the log lock. Replicas ack what they applied, and both sides
+ * report the lag. Promoting a replica stops it following and makes it
+ * accept writes and replicas of its own. The snapshot and stream carry
+ * every account and password, so only this machine and the hosts in the
+ * replica_hosts setting may connect.
+ *
+ * Frames: 'R' commit millis + record, 'F' path + file bytes,
+ * 'S' seq + files, 'H' primary seq + millis (heartbeat).
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class Replication {
+    public static final int PORT_OFFSET = 4;
+    public static final long BACKLOG_BYTES = 32L * 1024 * 1024;
+    public static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+    // heartbeats go out every second and replicas ack them, so silence this long means a dead peer
+    static final int READ_TIMEOUT = 30 * 1000;
+    private static final byte RECORD = 'R';
+    private static final byte FILE = 'F';
+    private static final byte SNAPSHOT = 'S';
+    private static final byte HEARTBEAT = 'H';
+
+    private static class Frame {
+        final byte type;
+        // last record seq when the frame was made (its own seq for records)
+        final long position;
+        final byte[] bytes;
+
+        Frame(byte type, long position, byte[] bytes) {
+            this.type = type;
+            this.position = position;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * One connected replica, on the primary.
+     */
+    private static class Follower {
+        final Socket socket;
+        final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        final AtomicLong queuedBytes = new AtomicLong();
+        volatile long acked;
+
+        Follower(Socket socket, long acked) {
+            this.socket = socket;
+            this.acked = acked;
+        }
+
+        void enqueue(byte[] frame) {
+            if (queuedBytes.addAndGet(frame.length) > ServerConfig.getLong("replication_queue_mb") * 1024 * 1024) {
+                // too far behind to keep buffering; it resyncs when it reconnects
+                close();
+                return;
+            }
+            queue.add(frame);
+        }
+
+        void close() {
+            FOLLOWERS.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    // primary side
+    private static final ArrayDeque<Frame> BACKLOG = new ArrayDeque<>();
+    private static long backlogBytes;
+    // frames after this position are all still in the backlog
+    private static long backlogFloor = -1;
+    private static final List<Follower> FOLLOWERS = new CopyOnWriteArrayList<>();
+    private static volatile ServerSocket server;
+
+    // replica side
+    private static volatile boolean replica;
+    private static volatile String primaryHost;
+    private static volatile int primaryPort;
+    private static volatile Socket upstream;
+    private static volatile long primarySeq;
+    private static volatile long lastHeard;
+    private static volatile long appliedCommitMillis;
+
+    private static final ScheduledExecutorService HEARTBEAT_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replication-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Replication() {
+    }
+
+    public static boolean isReplica() {
+        return replica;
+    }
+
+    /**
+     * Accepts replicas on the given port. Called on startup and on promotion.
+     */
+    public static void startPrimary(int port) throws IOException {
+        ServerSocket listening;
+        // the log lock first, as on commit, so no record slips past the floor
+        synchronized (WriteAheadLog.lock()) {
+            synchronized (Replication.class) {
+                if (server != null) return;
+                backlogFloor = WriteAheadLog.lastSeq();
+                server = new ServerSocket(port);
+                listening = server;
+            }
+        }
+        Thread acceptor = new Thread(() -> {
+            while (!listening.isClosed()) {
+                try {
+                    Socket socket = listening.accept();
+                    if (!isReplicaAddress(socket.getInetAddress())) {
+                        System.err.println("Refused replica " + socket.getInetAddress() + ", not in replica_hosts");
+                        closeQuietly(socket);
+                        continue;
+                    }
+                    socket.setKeepAlive(true);
+                    socket.setSoTimeout(READ_TIMEOUT);
+                    new Thread(() -> serveReplica(socket), "replication-sender").start();
+                } catch (IOException e) {
+                    if (!listening.isClosed()) {
+                        System.err.println("Replication accept failed: " + e.getMessage());
+                    }
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        HEARTBEAT_TIMER.scheduleWithFixedDelay(Replication::heartbeat, 1, 1, TimeUnit.SECONDS);
+        System.out.println("Replication listening on port " + port);
+    }
+
+    // this machine, or one of the hosts named in replica_hosts
+    static boolean isReplicaAddress(InetAddress address) {
+        if (address.isLoopbackAddress()) return true;
+        for (String host : ServerConfig.get("replica_hosts").split(",")) {
+            if (host.trim().isEmpty()) continue;
+            try {
+                for (InetAddress a : InetAddress.getAllByName(host.trim())) {
+                    if (a.equals(address)) return true;
+                }
+            } catch (IOException e) {
+                // a host that doesn't resolve can't be this one
+            }
+        }
+        return false;
+    }
+
+    public static synchronized void stop() {
+        replica = false;
+        closeQuietly(upstream);
+        try {
+            if (server != null) server.close();
+        } catch (IOException e) {
+            System.err.println("Error closing replication socket: " + e.getMessage());
+        }
+        server = null;
+        for (Follower f : FOLLOWERS) {
+            f.close();
+        }
+    }
+
+    /**
+     * Called by the WriteAheadLog, under its lock, for every committed record.
+     */
+    static void logged(byte[] payload) {
+        long seq = seqOf(payload);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 13);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(payload.length);
+            out.write(payload);
+            publish(new Frame(RECORD, seq, bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A file that changed outside the log (stock rewrite, new image); sends
+     * its current contents. Callers hold whatever lock orders its writes.
+     */
+    public static void fileChanged(File file) {
+        if (replica || server == null) return;
+        try {
+            publish(new Frame(FILE, WriteAheadLog.lastSeq(), fileFrame(file)));
+        } catch (IOException e) {
+            System.err.println("Could not replicate " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static synchronized void publish(Frame frame) {
+        if (server == null) return;
+        BACKLOG.addLast(frame);
+        backlogBytes += frame.bytes.length;
+        long limit = ServerConfig.getLong("replication_backlog_mb") * 1024 * 1024;
+        while (backlogBytes > limit && BACKLOG.size() > 1) {
+            Frame dropped = BACKLOG.removeFirst();
+            backlogBytes -= dropped.bytes.length;
+            backlogFloor = dropped.position;
+        }
+        for (Follower f : FOLLOWERS) {
+            f.enqueue(frame.bytes);
+        }
+    }
+
+    private static void heartbeat() {
+        if (FOLLOWERS.isEmpty()) return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(17);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(HEARTBEAT);
+            out.writeLong(WriteAheadLog.lastSeq());
+            out.writeLong(System.currentTimeMillis());
+            for (Follower f : FOLLOWERS) {
+                f.enqueue(bytes.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void serveReplica(Socket socket) {
+        Follower follower = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!"SYNC".equals(in.readUTF())) return;
+            long from = in.readLong();
+            follower = new Follower(socket, from);
+            catchUp(follower, from);
+            System.out.println("Replica " + socket.getRemoteSocketAddress() + " connected at " + from);
+
+            Follower f = follower;
+            Thread acks = new Thread(() -> {
+                try {
+                    while (true) {
+                        f.acked = in.readLong();
+                    }
+                } catch (IOException e) {
+                    f.close();
+                }
+            }, "replication-acks");
+            acks.setDaemon(true);
+            acks.start();
+
+            while (!socket.isClosed()) {
+                byte[] frame = f.queue.poll(1, TimeUnit.SECONDS);
+                if (frame == null) continue;
+                f.queuedBytes.addAndGet(-frame.length);
+                out.write(frame);
+                if (f.queue.isEmpty()) out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // replica went away; it reconnects with its own position
+        } finally {
+            if (follower != null) {
+                follower.close();
+                System.out.println("Replica " + socket.getRemoteSocketAddress() + " disconnected");
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Queues everything the replica is missing and registers it for new
+     * frames, all under the log lock so nothing is committed in between.
+     */
+    private static void catchUp(Follower follower, long from) throws IOException {
+        List<File> images = new ArrayList<>();
+        synchronized (WriteAheadLog.lock()) {
+            WriteAheadLog.awaitApplied();
+            synchronized (Replication.class) {
+                // a new replica (at 0) always starts from a snapshot
+                if (from > 0 && from >= backlogFloor && from <= WriteAheadLog.lastSeq()) {
+                    for (Frame frame : BACKLOG) {
+                        if (frame.position > from || (frame.type == FILE && frame.position == from)) {
+                            follower.enqueue(frame.bytes);
+                        }
+                    }
+                } else {
+                    follower.enqueue(snapshotFrame());
+                    File[] files = new File(MarketplaceServerInterface.IMAGE_DIR).listFiles(File::isFile);
+                    if (files != null) {
+                        for (File image : files) {
+                            images.add(image);
+                        }
+                    }
+                }
+                FOLLOWERS.add(follower);
+            }
+        }
+        // images never change once written, so these can go after the lock
+        for (File image : images) {
+            follower.enqueue(fileFrame(image));
+        }
+    }
+
+    private static byte[] snapshotFrame() throws IOException {
+        Map<String, File> files = new LinkedHashMap<>();
+        for (String name : new String[]{MarketplaceServerInterface.CLIENTS_FILE, MarketplaceServerInterface.SELLERS_FILE,
+                MarketplaceServerInterface.BALANCES_FILE, MarketplaceServerInterface.TRANSACTIONS_FILE,
+                MarketplaceServerInterface.REQUESTS_FILE}) {
+            files.put(name, new File(name));
+        }
+        File[] products = new File(MarketplaceServerInterface.PRODUCTS_DIR).listFiles((d, n) -> n.endsWith(".txt"));
+        if (products != null) {
+            for (File f : products) {
+                files.put(MarketplaceServerInterface.PRODUCTS_DIR + f.getName(), f);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SNAPSHOT);
+        out.writeLong(WriteAheadLog.lastSeq());
+        out.writeInt(files.size());
+        for (Map.Entry<String, File> e : files.entrySet()) {
+            byte[] content = e.getValue().exists() ? Files.readAllBytes(e.getValue().toPath()) : new byte[0];
+            out.writeUTF(e.getKey());
+            out.writeInt(content.length);
+            out.write(content);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] fileFrame(File file) throws IOException {
+        byte[] content = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FILE);
+        out.writeUTF(file.getPath().replace(File.separatorChar, '/'));
+        out.writeInt(content.length);
+        out.write(content);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Runs this server as a read replica of the primary at host:port (its
+     * session port), reconnecting until promoted or stopped.
+     */
+    public static void follow(String host, int port) {
+        replica = true;
+        primaryHost = host;
+        primaryPort = port;
+        Thread t = new Thread(() -> {
+            long backoff = 500;
+            while (replica) {
+                try (Socket socket = new Socket(host, port + PORT_OFFSET)) {
+                    socket.setKeepAlive(true);
+                    socket.setSoTimeout(READ_TIMEOUT);
+                    upstream = socket;
+                    if (!replica) break;
+                    System.out.println("Following primary " + host + ":" + port + " from " + WriteAheadLog.lastSeq());
+                    receive(socket);
+                } catch (IOException e) {
+                    if (replica) {
+                        System.err.println("Replication from " + host + ":" + port + " interrupted: " + e.getMessage());
+                    }
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, 10000);
+            }
+        }, "replication-follower");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void receive(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeUTF("SYNC");
+        out.writeLong(WriteAheadLog.lastSeq());
+        out.flush();
+        while (replica) {
+            byte type = in.readByte();
+            lastHeard = System.currentTimeMillis();
+            switch (type) {
+                case RECORD:
+                    long committedAt = in.readLong();
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    WriteAheadLog.applyReplicated(payload);
+                    appliedCommitMillis = committedAt;
+                    primarySeq = Math.max(primarySeq, seqOf(payload));
+                    break;
+                case FILE:
+                    String path = in.readUTF();
+                    byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    AtomicFiles.writeBytes(safeFile(path), content);
+                    break;
+                case SNAPSHOT:
+                    installSnapshot(in);
+                    break;
+                case HEARTBEAT:
+                    primarySeq = in.readLong();
+                    in.readLong();
+                    break;
+                default:
+                    throw new IOException("Unknown replication frame " + type);
+            }
+            if (in.available() == 0) {
+                out.writeLong(WriteAheadLog.lastSeq());
+                out.flush();
+            }
+        }
+    }
+
+    private static void installSnapshot(DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        int count = in.readInt();
+        List<String> products = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            AtomicFiles.writeBytes(safeFile(path), content);
+            if (path.startsWith(MarketplaceServerInterface.PRODUCTS_DIR)) {
+                products.add(path.substring(MarketplaceServerInterface.PRODUCTS_DIR.length()));
+            }
+        }
+        File[] local = new File(MarketplaceServerInterface.PRODUCTS_DIR).listFiles((d, n) -> n.endsWith(".txt"));
+        if (local != null) {
+            for (File f : local) {
+                if (!products.contains(f.getName())) f.delete();
+            }
+        }
+        WriteAheadLog.resetTo(seq);
+        primarySeq = Math.max(primarySeq, seq);
+        System.out.println("Installed snapshot from primary at " + seq);
+    }
+
+    // only the data files and the products and images directories may be written
+    private static File safeFile(String path) throws IOException {
+        String name = null;
+        if (path.startsWith(MarketplaceServerInterface.PRODUCTS_DIR)) {
+            name = path.substring(MarketplaceServerInterface.PRODUCTS_DIR.length());
+        } else if (path.startsWith(MarketplaceServerInterface.IMAGE_DIR)) {
+            name = path.substring(MarketplaceServerInterface.IMAGE_DIR.length());
+        } else if (path.equals(MarketplaceServerInterface.CLIENTS_FILE) || path.equals(MarketplaceServerInterface.SELLERS_FILE)
+                || path.equals(MarketplaceServerInterface.BALANCES_FILE)
+                || path.equals(MarketplaceServerInterface.TRANSACTIONS_FILE)
+                || path.equals(MarketplaceServerInterface.REQUESTS_FILE)) {
+            return new File(path);
+        }
+        if (name == null || name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IOException("Refusing to replicate " + path);
+        }
+        return new File(path);
+    }
+
+    /**
+     * Makes this replica the primary: it stops following, accepts writes and
+     * starts accepting replicas on port.
+     *
+     * @return false if this server wasn't a replica
+     */
+    public static boolean promote(int port) throws IOException {
+        synchronized (Replication.class) {
+            if (!replica) return false;
+            replica = false;
+        }
+        closeQuietly(upstream);
+        startPrimary(port);
+        System.out.println("Promoted to primary at " + WriteAheadLog.lastSeq());
+        return true;
+    }
+
+    /**
+     * Human-readable replication state and lag, one item per line.
+     */
+    public static List<String> status() {
+        List<String> lines = new ArrayList<>();
+        long seq = WriteAheadLog.lastSeq();
+        if (replica) {
+            long behind = Math.max(0, primarySeq - seq);
+            lines.add("role: replica of " + primaryHost + ":" + primaryPort);
+            lines.add("applied: " + seq);
+            lines.add("primary: " + primarySeq);
+            lines.add("lag records: " + behind);
+            lines.add("lag millis: " + (behind == 0 ? 0 : Math.max(0, System.currentTimeMillis() - appliedCommitMillis)));
+            lines.add("last heard millis ago: " + (lastHeard == 0 ? -1 : System.currentTimeMillis() - lastHeard));
+        } else {
+            lines.add("role: primary");
+            lines.add("seq: " + seq);
+            lines.add("replicas: " + FOLLOWERS.size());
+            for (Follower f : FOLLOWERS) {
+                lines.add("replica " + f.socket.getRemoteSocketAddress() + " acked " + f.acked
+                        + ", lag records: " + Math.max(0, seq - f.acked) + ", queued bytes: " + f.queuedBytes.get());
+            }
+        }
+        return lines;
+    }
+
+    private static long seqOf(byte[] payload) {
+        long seq = 0;
+        for (int i = 0; i < 8; i++) {
+            seq = (seq << 8) | (payload[i] & 0xFF);
+        }
+        return seq;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package src;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Requests that moved money, by the id the client gave them, so a client
+ * that lost its connection can ask whether its purchase or top-up went
+ * through instead of repeating it. Each id is appended to requests.txt in
+ * the same logged change as the payment, so it is recorded if and only if
+ * the payment happened. Lookups read whatever was appended since the last
+ * one, in bounded chunks, which also keeps replicas current. At each
+ * checkpoint a file that has grown past twice request_log_keep ids is cut
+ * back to the last request_log_keep, through the log so replicas cut
+ * theirs the same way.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class RequestLog {
+    // only recent requests can still be in flight; request_log_keep in ServerConfig
+    public static final int KEEP = 10000;
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    // user|id -> summary
+    private static final Map<String, String> DONE = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > ServerConfig.getInt("request_log_keep");
+        }
+    };
+    private static long consumed = 0;
+    // identifies the file consumed was counted in; a trimmed file is a new one
+    private static Object consumedKey;
+
+    private RequestLog() {
+    }
+
+    /**
+     * @return the ledger line recording that user's request id completed
+     */
+    public static String line(String user, String id, String summary) {
+        return user + "|" + clean(id) + "|" + clean(summary);
+    }
+
+    /**
+     * @return what the request did, or null if it never completed
+     */
+    public static synchronized String result(String user, String id) throws IOException {
+        catchUp();
+        return DONE.get(user + "|" + clean(id));
+    }
+
+    /**
+     * Trims requests.txt to the last request_log_keep ids once it holds twice
+     * that many. Runs before a checkpoint; appends to the file are logged
+     * under the log lock, so none can land between reading and rewriting it.
+     */
+    public static void compact() throws IOException {
+        // a replica trims when the primary's rewrite reaches it
+        if (Replication.isReplica()) return;
+        File file = new File(MarketplaceServerInterface.REQUESTS_FILE);
+        int keep = ServerConfig.getInt("request_log_keep");
+        synchronized (WriteAheadLog.lock()) {
+            WriteAheadLog.awaitApplied();
+            Deque<String> last = new ArrayDeque<>();
+            long lines = 0;
+            if (file.exists()) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines++;
+                        last.addLast(line);
+                        if (last.size() > keep) last.removeFirst();
+                    }
+                }
+            }
+            if (lines <= 2L * keep) return;
+            WriteAheadLog.batch().rewrite(MarketplaceServerInterface.REQUESTS_FILE, new ArrayList<>(last)).commit();
+            synchronized (RequestLog.class) {
+                DONE.clear();
+                consumed = 0;
+            }
+        }
+    }
+
+    private static void catchUp() throws IOException {
+        File file = new File(MarketplaceServerInterface.REQUESTS_FILE);
+        long length = file.length();
+        Object key = file.exists() ? Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey() : null;
+        if (length < consumed || !Objects.equals(key, consumedKey)) {
+            DONE.clear();
+            consumed = 0;
+            consumedKey = key;
+        }
+        if (length == consumed) return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] chunk = new byte[CHUNK_BYTES];
+            while (consumed < length) {
+                int n = (int) Math.min(chunk.length, length - consumed);
+                raf.seek(consumed);
+                raf.readFully(chunk, 0, n);
+                // only whole lines; a line still being written is read next time
+                int end = n;
+                while (end > 0 && chunk[end - 1] != '\n') end--;
+                if (end == 0) {
+                    if (n < chunk.length) return;
+                    chunk = new byte[chunk.length * 2];
+                    continue;
+                }
+                for (String line : new String(chunk, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                    String[] parts = line.split("\\|", 3);
+                    if (parts.length == 3) {
+                        DONE.put(parts[0] + "|" + parts[1], parts[2]);
+                    }
+                }
+                consumed += end;
+            }
+        }
+    }
+
+    private static String clean(String text) {
+        return text.replace('|', '/').replace('\n', ' ').replace('\r', ' ');
+    }
+}
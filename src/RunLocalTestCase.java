@@ -10,6 +10,12 @@ import java.io.*;
 import java.lang.String;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import static org.junit.Assert.*;
@@ -174,6 +180,521 @@ public class RunLocalTestCase {
         assertFalse(resultInvalid);
     }
 
+    @Test(timeout = 1000)
+    public void testBulkImport() throws Exception {
+        File productsFile = new File(MarketplaceServerInterface.PRODUCTS_DIR + "bulkseller.txt");
+        productsFile.delete();
+
+        setField("currentUser", "bulkseller");
+        handler.setOut(new PrintWriter(new StringWriter(), true));
+        handler.setIn(new BufferedReader(new StringReader(
+                "name,price,image\nlamp,12.5,none\nbad,abc\nchair,40\nEND_IMPORT\n")));
+
+        Method bulkImportMethod = MarketplaceServer.ClientHandler.class.getDeclaredMethod("handleBulkImport");
+        bulkImportMethod.setAccessible(true);
+        bulkImportMethod.invoke(handler);
+
+        String content = readFile(productsFile.getPath());
+        assertTrue(content.contains("lamp,12.50,none"));
+        assertTrue(content.contains("chair,40.00,none"));
+        assertFalse(content.contains("bad"));
+        productsFile.delete();
+    }
+
+    @Test(timeout = 5000)
+    public void testReserveLastUnit() throws Exception {
+        Product product = addProduct("invseller", "last lamp", 1);
+        try {
+            AtomicInteger reserved = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> buyers = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                String buyer = "buyer" + i;
+                Thread t = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (Inventory.reserve(product, buyer, 1) != null) reserved.incrementAndGet();
+                });
+                t.start();
+                buyers.add(t);
+            }
+            start.countDown();
+            for (Thread t : buyers) {
+                t.join();
+            }
+
+            assertEquals(1, reserved.get());
+            assertEquals(0, ProductCatalog.get(product.getId()).getStock());
+        } finally {
+            ProductCatalog.removeSeller("invseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testReservationReleaseAndExpiry() throws Exception {
+        Product product = addProduct("invseller", "spare lamp", 2);
+        try {
+            Inventory.Reservation all = Inventory.reserve(product, "alice", 2);
+            assertNotNull(all);
+            assertNull(Inventory.reserve(product, "bob", 1));
+
+            Inventory.release(all);
+            assertEquals(2, ProductCatalog.get(product.getId()).getStock());
+
+            Inventory.Reservation forgotten = Inventory.reserve(product, "bob", 1);
+            assertNotNull(forgotten);
+            Inventory.sweep(System.currentTimeMillis());
+            assertEquals(1, ProductCatalog.get(product.getId()).getStock());
+            Inventory.sweep(System.currentTimeMillis() + Inventory.RESERVATION_MILLIS + 1);
+            assertEquals(2, ProductCatalog.get(product.getId()).getStock());
+
+            // releasing after expiry must not hand the stock back twice
+            Inventory.release(forgotten);
+            assertEquals(2, ProductCatalog.get(product.getId()).getStock());
+        } finally {
+            ProductCatalog.removeSeller("invseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testCatalogBinaryKeepsReservedStock() throws Exception {
+        Product lamp = addProduct("binseller", "saved lamp", 5);
+        File saved = new File(TEST_DIR + "catalog.bin");
+        new File(TEST_DIR).mkdirs();
+        try {
+            Map<Long, Integer> cart = cartFor("alice", new StringWriter());
+            cart.put(lamp.getId(), 1);
+            checkout(lamp.getId());
+            Inventory.Reservation held = Inventory.reserve(lamp, "bob", 2);
+            assertNotNull(held);
+
+            // a restart forgets the reservation, so the saved stock is the file's
+            ProductCatalog.saveBinary(saved);
+            Product reread = ProductCatalog.readBinary(saved).get("binseller").get(0);
+            assertEquals(4, reread.getStock());
+            Inventory.release(held);
+        } finally {
+            ProductCatalog.removeSeller("binseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testCheckoutSoldOutItem() throws Exception {
+        Product lamp = addProduct("cartseller", "cart lamp", 5);
+        Product chair = addProduct("cartseller", "cart chair", 1);
+        Inventory.Reservation taken = Inventory.reserve(chair, "bob", 1);
+        try {
+            StringWriter output = new StringWriter();
+            Map<Long, Integer> cart = cartFor("alice", output);
+            cart.put(lamp.getId(), 2);
+            cart.put(chair.getId(), 1);
+
+            checkout(lamp.getId(), chair.getId());
+
+            // nothing is bought when one item can't be had
+            assertTrue(output.toString().contains("Checkout failed"));
+            assertEquals(5, ProductCatalog.get(lamp.getId()).getStock());
+            assertEquals(5, storedStock(lamp));
+            assertEquals(100.0, balanceOf("alice"), 0.001);
+            assertEquals(2, cart.size());
+        } finally {
+            Inventory.release(taken);
+            ProductCatalog.removeSeller("cartseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testCheckoutPaymentFailure() throws Exception {
+        Product lamp = addProduct("cartseller", "cart lamp", 20);
+        try {
+            StringWriter output = new StringWriter();
+            Map<Long, Integer> cart = cartFor("alice", output);
+            cart.put(lamp.getId(), 11);
+
+            checkout(lamp.getId());
+
+            // $110 is more than alice has, so the units go back on the shelf
+            assertTrue(output.toString().contains("Payment failed"));
+            assertEquals(20, ProductCatalog.get(lamp.getId()).getStock());
+            assertEquals(20, storedStock(lamp));
+            assertEquals(100.0, balanceOf("alice"), 0.001);
+            assertEquals(1, cart.size());
+        } finally {
+            ProductCatalog.removeSeller("cartseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testCheckoutSuccess() throws Exception {
+        Product lamp = addProduct("cartseller", "cart lamp", 5);
+        try {
+            StringWriter output = new StringWriter();
+            Map<Long, Integer> cart = cartFor("alice", output);
+            cart.put(lamp.getId(), 2);
+
+            checkout(lamp.getId());
+
+            assertTrue(output.toString().contains("Checkout successful"));
+            assertEquals(3, ProductCatalog.get(lamp.getId()).getStock());
+            assertEquals(3, storedStock(lamp));
+            assertEquals(80.0, balanceOf("alice"), 0.001);
+            assertEquals(20.0, balanceOf("cartseller"), 0.001);
+            assertTrue(cart.isEmpty());
+        } finally {
+            ProductCatalog.removeSeller("cartseller");
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void testSaleFoldedIntoAnalyticsOnce() throws Exception {
+        Product lamp = addProduct("statseller", "stats lamp", 5);
+        try {
+            SalesAnalytics.update();
+            long binary = TransactionLog.BINARY_FILE.length();
+            Map<Long, Integer> cart = cartFor("alice", new StringWriter());
+            cart.put(lamp.getId(), 2);
+            checkout(lamp.getId());
+
+            // the sale is in the totals without the binary history catching up
+            assertEquals(binary, TransactionLog.BINARY_FILE.length());
+            // and reading the dashboard, which does catch up, doesn't count it again
+            List<String> dashboard = SalesAnalytics.dashboard("statseller");
+            assertEquals("Total: 2 orders, $20.00", dashboard.get(0));
+            assertTrue(TransactionLog.BINARY_FILE.length() > binary);
+            assertEquals("Total: 2 orders, $20.00", SalesAnalytics.dashboard("statseller").get(0));
+        } finally {
+            ProductCatalog.removeSeller("statseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testReplayedRequestPaysOnce() throws Exception {
+        Product lamp = addProduct("reqseller", "request lamp", 5);
+        String id = "checkout-" + System.nanoTime();
+        try {
+            StringWriter output = new StringWriter();
+            Map<Long, Integer> cart = cartFor("alice", output);
+            cart.put(lamp.getId(), 1);
+            setField("requestId", id);
+            checkout(lamp.getId());
+
+            // the reply was lost, so the client sends the same request again
+            cart.put(lamp.getId(), 1);
+            setField("requestId", id);
+            checkout(lamp.getId());
+
+            assertTrue(output.toString().contains("That request was already completed."));
+            assertEquals(90.0, balanceOf("alice"), 0.001);
+            assertEquals(4, ProductCatalog.get(lamp.getId()).getStock());
+        } finally {
+            ProductCatalog.removeSeller("reqseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testRequestStatusAfterReconnect() throws Exception {
+        Product lamp = addProduct("reqseller", "request lamp", 5);
+        String id = "checkout-" + System.nanoTime();
+        try {
+            Map<Long, Integer> cart = cartFor("alice", new StringWriter());
+            cart.put(lamp.getId(), 1);
+            setField("requestId", id);
+            checkout(lamp.getId());
+
+            // a new connection for the same user asks what became of it
+            handler = new MarketplaceServer.ClientHandler(null);
+            StringWriter output = new StringWriter();
+            cartFor("alice", output);
+            Method reportMethod = MarketplaceServer.ClientHandler.class.getDeclaredMethod("reportRequest", String.class);
+            reportMethod.setAccessible(true);
+            reportMethod.invoke(handler, id);
+            reportMethod.invoke(handler, id + "-never-sent");
+            setField("currentUser", "bob");
+            reportMethod.invoke(handler, id);
+
+            String[] replies = output.toString().split(System.lineSeparator());
+            assertTrue(replies[0].startsWith("REQUEST_DONE:" + id + " "));
+            assertEquals("REQUEST_UNKNOWN:" + id + "-never-sent", replies[1]);
+            assertEquals("REQUEST_UNKNOWN:" + id, replies[2]);
+        } finally {
+            ProductCatalog.removeSeller("reqseller");
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPromotedReplicaKnowsPaidRequests() throws Exception {
+        Product lamp = addProduct("reqseller", "request lamp", 5);
+        String id = "checkout-" + System.nanoTime();
+        Field replica = Replication.class.getDeclaredField("replica");
+        replica.setAccessible(true);
+        try {
+            Map<Long, Integer> cart = cartFor("alice", new StringWriter());
+            cart.put(lamp.getId(), 1);
+            setField("requestId", id);
+            checkout(lamp.getId());
+
+            Method snapshotMethod = Replication.class.getDeclaredMethod("snapshotFrame");
+            snapshotMethod.setAccessible(true);
+            byte[] snapshot = (byte[]) snapshotMethod.invoke(null);
+
+            // a new replica has none of the primary's files until the snapshot arrives
+            new File(MarketplaceServerInterface.REQUESTS_FILE).delete();
+            replica.set(null, true);
+            Method installMethod = Replication.class.getDeclaredMethod("installSnapshot", DataInputStream.class);
+            installMethod.setAccessible(true);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+            in.readByte();
+            installMethod.invoke(null, in);
+            replica.set(null, false);
+
+            // after failover the client sends its request again, to the promoted replica
+            StringWriter output = new StringWriter();
+            cart = cartFor("alice", output);
+            cart.put(lamp.getId(), 1);
+            setField("requestId", id);
+            checkout(lamp.getId());
+
+            assertTrue(output.toString().contains("That request was already completed."));
+            assertEquals(90.0, balanceOf("alice"), 0.001);
+        } finally {
+            replica.set(null, false);
+            ProductCatalog.removeSeller("reqseller");
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testRequestLogCompaction() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i <= 2 * RequestLog.KEEP; i++) {
+            lines.append("olduser|id").append(i).append("|Top up $1.00\n");
+        }
+        writeFile(MarketplaceServerInterface.REQUESTS_FILE, lines.toString());
+
+        RequestLog.compact();
+
+        assertEquals(RequestLog.KEEP, java.nio.file.Files.readAllLines(
+                new File(MarketplaceServerInterface.REQUESTS_FILE).toPath()).size());
+        assertNull(RequestLog.result("olduser", "id0"));
+        assertEquals("Top up $1.00", RequestLog.result("olduser", "id" + 2 * RequestLog.KEEP));
+    }
+
+    @Test(timeout = 1000)
+    public void testPeerCommitNeedsPrepare() throws Exception {
+        Product lamp = addProduct("peerseller", "peer lamp", 5);
+        String txid = "tx-" + System.nanoTime();
+        try {
+            // a COMMIT this node never prepared credits nobody
+            List<String> reply = ClusterNode.handle(new String[]{"COMMIT", txid});
+            assertTrue(reply.get(0).startsWith("ERROR"));
+            assertEquals(0.0, balanceOf("peerseller"), 0.001);
+
+            reply = ClusterNode.handle(new String[]{"PREPARE", txid, "peerseller", Long.toString(lamp.getId()),
+                    "1000", "alice"});
+            assertTrue(reply.get(0).startsWith("PREPARED"));
+            assertEquals("OK", ClusterNode.handle(new String[]{"COMMIT", txid}).get(0));
+            assertEquals("OK", ClusterNode.handle(new String[]{"COMMIT", txid}).get(0));
+            assertEquals(10.0, balanceOf("peerseller"), 0.001);
+            assertEquals(4, ProductCatalog.get(lamp.getId()).getStock());
+        } finally {
+            ProductCatalog.removeSeller("peerseller");
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testDrainingRefusesPurchases() throws Exception {
+        Field draining = MarketplaceServer.class.getDeclaredField("draining");
+        draining.setAccessible(true);
+        StringWriter output = new StringWriter();
+        handler.setOut(new PrintWriter(output, true));
+        Method admittedMethod = MarketplaceServer.ClientHandler.class.getDeclaredMethod("admitted",
+                String.class, RateLimiter.Op.class);
+        admittedMethod.setAccessible(true);
+
+        draining.set(null, true);
+        try {
+            // option 11 (checkout) and buying from a product list are both purchases
+            assertEquals(RateLimiter.Op.PURCHASE, MarketplaceServer.ClientHandler.clientOp("11"));
+            assertFalse((Boolean) admittedMethod.invoke(handler, "alice", RateLimiter.Op.PURCHASE));
+            assertTrue(output.toString().startsWith(RateLimiter.BUSY_PREFIX));
+        } finally {
+            draining.set(null, false);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSlowSubscriberIsDropped() throws Exception {
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch dropped = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger();
+        // a client that stopped reading: its writer blocks on the first event
+        MarketplaceEvents.Subscription slow = MarketplaceEvents.subscribe("slowuser", e -> {
+            try {
+                stuck.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, dropped::countDown);
+        MarketplaceEvents.Subscription fast = MarketplaceEvents.subscribe("fastuser",
+                e -> received.incrementAndGet(), () -> fail("fast subscriber dropped"));
+        try {
+            for (int i = 0; i < MarketplaceEvents.QUEUE_SIZE + 2; i++) {
+                MarketplaceEvents.publishAll("TEST " + i);
+                // a client that keeps reading is never more than a few events behind
+                while (received.get() < i - 16) {
+                    Thread.sleep(1);
+                }
+            }
+            assertTrue(dropped.await(1, java.util.concurrent.TimeUnit.SECONDS));
+            while (received.get() < MarketplaceEvents.QUEUE_SIZE + 2) {
+                Thread.sleep(5);
+            }
+        } finally {
+            stuck.countDown();
+            MarketplaceEvents.unsubscribe(slow);
+            MarketplaceEvents.unsubscribe(fast);
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testDrainWaitsForConfirmation() throws Exception {
+        PipedWriter user = new PipedWriter();
+        RateLimiter.TrackedReader reader = new RateLimiter.TrackedReader(new PipedReader(user));
+        String[] answer = new String[1];
+        Thread session = new Thread(() -> {
+            try {
+                answer[0] = reader.readConfirmation();
+            } catch (IOException e) {
+                answer[0] = e.toString();
+            }
+        });
+        session.start();
+        while (RateLimiter.confirming() == 0) {
+            Thread.sleep(5);
+        }
+
+        // a drain sees the session as still in a purchase until it answers
+        user.write("yes\n");
+        user.flush();
+        session.join();
+        assertEquals("yes", answer[0]);
+        assertEquals(0, RateLimiter.confirming());
+        reader.close();
+    }
+
+    @Test(timeout = 1000)
+    public void testServerConfigRanges() throws Exception {
+        assertTrue(ServerConfig.valid("page_size", "20"));
+        assertFalse(ServerConfig.valid("page_size", "0"));
+        assertFalse(ServerConfig.valid("page_size", "1.5"));
+        assertFalse(ServerConfig.valid("server_port", "70000"));
+        assertFalse(ServerConfig.valid("max_image_mb", "-1"));
+        assertTrue(ServerConfig.valid("rate_login_per_second", "0.5"));
+        assertFalse(ServerConfig.valid("rate_login_per_second", "0"));
+        assertFalse(ServerConfig.valid("rate_login_per_second", "NaN"));
+        assertTrue(ServerConfig.valid("wal_sync", "checkpoint"));
+        assertFalse(ServerConfig.valid("wal_sync", "sometimes"));
+        assertTrue(ServerConfig.valid("replica_hosts", "10.0.0.2, replica.local"));
+        assertFalse(ServerConfig.valid("replica_hosts", "10.0.0.2 replica.local"));
+        for (String key : new String[]{"server_port", "checkpoint_seconds", "page_size", "rate_purchase_burst",
+                "request_log_keep", "replication_queue_mb"}) {
+            assertTrue(key, ServerConfig.valid(key, ServerConfig.get(key)));
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testWriteAheadLogRecovery() throws Exception {
+        new File(TEST_DIR).mkdirs();
+        String balances = TEST_DIR + "wal_balances.txt";
+        String ledger = TEST_DIR + "wal_ledger.txt";
+        String products = TEST_DIR + "wal_products.txt";
+        File log = new File(WriteAheadLog.LOG_FILE);
+        writeFile(balances, "alice:100.0\n");
+        writeFile(products, "lamp,10.00,none,1,5\n");
+        WriteAheadLog.checkpoint();
+        long emptyLog = log.length();
+
+        WriteAheadLog.batch().set(balances, "alice", "90.0").append(ledger, "alice|lamp|10.00")
+                .sold(products, 1, 1).commit();
+        byte[] logged = java.nio.file.Files.readAllBytes(log.toPath());
+
+        // crash: the balance and stock never made it, the ledger append was torn,
+        // and the log ends with a record with a bad checksum and a half-written one
+        writeFile(balances, "alice:100.0\n");
+        writeFile(products, "lamp,10.00,none,1,5\n");
+        writeFile(ledger, "alice|la");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream tail = new DataOutputStream(bytes);
+        tail.write(logged);
+        tail.writeInt(40);
+        tail.write(new byte[40]);
+        tail.writeLong(12345);
+        tail.writeInt(1000);
+        tail.write(new byte[10]);
+        java.nio.file.Files.write(log.toPath(), bytes.toByteArray());
+
+        assertEquals(1, WriteAheadLog.recover());
+        assertRecovered(balances, ledger, products);
+        assertEquals(emptyLog, log.length());
+
+        // the same record replayed over files that already have it changes nothing
+        java.nio.file.Files.write(log.toPath(), logged);
+        assertEquals(1, WriteAheadLog.recover());
+        assertRecovered(balances, ledger, products);
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteAheadLogConcurrentCommits() throws Exception {
+        new File(TEST_DIR).mkdirs();
+        for (int f = 0; f < 4; f++) {
+            writeFile(TEST_DIR + "wal_stock" + f + ".txt", "lamp,10.00,none,1,1000\n");
+            new File(TEST_DIR + "wal_log" + f + ".txt").delete();
+        }
+        WriteAheadLog.checkpoint();
+
+        // two threads per file; batches on different files apply side by side
+        Thread[] threads = new Thread[8];
+        AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < threads.length; t++) {
+            int f = t % 4;
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        WriteAheadLog.batch().append(TEST_DIR + "wal_log" + f + ".txt", thread + "|" + i)
+                                .sold(TEST_DIR + "wal_stock" + f + ".txt", 1, 1).commit();
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+
+        // replaying the whole log over the files must change nothing
+        for (int pass = 0; pass < 2; pass++) {
+            for (int f = 0; f < 4; f++) {
+                assertEquals(100, java.nio.file.Files.readAllLines(
+                        new File(TEST_DIR + "wal_log" + f + ".txt").toPath()).size());
+                assertEquals("lamp,10.00,none,1,900" + System.lineSeparator(),
+                        readFile(TEST_DIR + "wal_stock" + f + ".txt"));
+            }
+            if (pass == 0) WriteAheadLog.recover();
+        }
+    }
+
+    private void assertRecovered(String balances, String ledger, String products) throws IOException {
+        assertEquals("alice:90.0" + System.lineSeparator(), readFile(balances));
+        assertEquals("alice|lamp|10.00" + System.lineSeparator(), readFile(ledger));
+        assertEquals("lamp,10.00,none,1,4" + System.lineSeparator(), readFile(products));
+    }
+
     @After
     public void cleanup() {
         deleteDir(new File(TEST_DIR));
@@ -189,12 +710,54 @@ public class RunLocalTestCase {
         file.delete();
     }
 
+    private Product addProduct(String seller, String name, int stock) throws IOException {
+        List<Product> drafts = new ArrayList<>();
+        drafts.add(new Product(0, seller, name, 1000, stock, "none"));
+        return ProductCatalog.add(seller, drafts).get(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, Integer> cartFor(String user, StringWriter output) throws Exception {
+        setField("currentUser", user);
+        handler.setOut(new PrintWriter(output, true));
+        Field field = MarketplaceServer.ClientHandler.class.getDeclaredField("cart");
+        field.setAccessible(true);
+        return (Map<Long, Integer>) field.get(handler);
+    }
+
+    private void checkout(Long... ids) throws Exception {
+        Method checkoutMethod = MarketplaceServer.ClientHandler.class.getDeclaredMethod("checkout", List.class);
+        checkoutMethod.setAccessible(true);
+        checkoutMethod.invoke(handler, Arrays.asList(ids));
+    }
+
+    private double balanceOf(String user) throws Exception {
+        Method getBalanceMethod = MarketplaceServer.ClientHandler.class.getDeclaredMethod("getBalance", String.class);
+        getBalanceMethod.setAccessible(true);
+        return (Double) getBalanceMethod.invoke(handler, user);
+    }
+
+    // the stock written to the seller's product file, not the in-memory count
+    private int storedStock(Product product) throws IOException {
+        for (String line : java.nio.file.Files.readAllLines(CatalogStore.fileFor(product.getSeller()).toPath())) {
+            Product stored = Product.parse(product.getSeller(), line);
+            if (stored != null && stored.getId() == product.getId()) return stored.getStock();
+        }
+        return -1;
+    }
+
     private void setField(String fieldName, Object value) throws NoSuchFieldException, IllegalAccessException {
         Field field = MarketplaceServer.ClientHandler.class.getDeclaredField(fieldName);
         field.setAccessible(true);
         field.set(handler, value);
     }
 
+    private void writeFile(String path, String content) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
+            writer.write(content);
+        }
+    }
+
     // Helper method to read file content
     private String readFile(String path) throws IOException {
         return new String(java.nio.file.Files.readAllBytes(new File(path).toPath()));
@@ -0,0 +1,204 @@
+package src;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Running sales totals per seller: orders and revenue overall, per product
+ * and per day for the last 30 days, so a seller's dashboard costs the same
+ * no matter how much history there is. The totals are built from the
+ * TransactionLog on startup. After that a payment folds its own ledger
+ * lines in from memory right after its batch commits, without touching the
+ * binary log. The binary log only catches up at checkpoints and when a
+ * dashboard is read, which also picks up transactions that arrived some
+ * other way (a replica's).
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class SalesAnalytics {
+    public static final int DAYS = 30;
+    public static final int TOP_PRODUCTS = 5;
+    private static final String PURCHASE_PREFIX = "Purchase: ";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static class SellerStats {
+        long orders;
+        long revenueCents;
+        // product name -> {units, cents}
+        final Map<String, long[]> products = new HashMap<>();
+        // ring of the last DAYS days, slot = epoch day % DAYS
+        final long[] slotDay = new long[DAYS];
+        final long[] dayOrders = new long[DAYS];
+        final long[] dayCents = new long[DAYS];
+
+        void add(String product, long cents, long day) {
+            orders++;
+            revenueCents += cents;
+            long[] p = products.computeIfAbsent(product, k -> new long[2]);
+            p[0]++;
+            p[1] += cents;
+            if (day < 0) return;
+            int slot = (int) (day % DAYS);
+            if (slotDay[slot] != day) {
+                // older than anything the ring still holds
+                if (slotDay[slot] > day) return;
+                slotDay[slot] = day;
+                dayOrders[slot] = 0;
+                dayCents[slot] = 0;
+            }
+            dayOrders[slot]++;
+            dayCents[slot] += cents;
+        }
+
+        // {orders, cents} over the days [today - days + 1, today]
+        long[] lastDays(long today, int days) {
+            long[] sum = new long[2];
+            for (long day = today - days + 1; day <= today; day++) {
+                int slot = (int) (day % DAYS);
+                if (day >= 0 && slotDay[slot] == day) {
+                    sum[0] += dayOrders[slot];
+                    sum[1] += dayCents[slot];
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static final Map<String, SellerStats> SELLERS = new HashMap<>();
+    // note id -> product name, or "" for notes that aren't purchases
+    private static final Map<Integer, String> PRODUCT_OF_NOTE = new HashMap<>();
+    private static long recordsSeen = 0;
+    private static boolean loaded;
+    // the newest records in the log, already folded in by recorded()
+    private static long foldedAhead = 0;
+
+    private SalesAnalytics() {
+    }
+
+    /**
+     * Catches the binary log up with transactions.txt and folds in every
+     * transaction not seen yet. Payments append under the balances lock, so
+     * holding it here means the records recorded() folded are exactly the
+     * newest foldedAhead ones.
+     */
+    public static void update() throws IOException {
+        // most of the decoding (and its forced writes) before payments are held up
+        TransactionLog.catchUp();
+        synchronized (MarketplaceServerInterface.BALANCES_FILE.intern()) {
+            synchronized (SalesAnalytics.class) {
+                TransactionLog.Records records = TransactionLog.records();
+                long count = records.count();
+                if (count < recordsSeen) {
+                    // the log was rebuilt, so ids may have changed too
+                    SELLERS.clear();
+                    PRODUCT_OF_NOTE.clear();
+                    recordsSeen = 0;
+                    foldedAhead = 0;
+                }
+                for (long r = recordsSeen; r < count - foldedAhead; r++) {
+                    String product = productOf(records.note(r));
+                    if (product.isEmpty()) continue;
+                    long millis = records.millis(r);
+                    add(TransactionLog.name(records.to(r)), product, records.cents(r), millis);
+                }
+                recordsSeen = count;
+                foldedAhead = 0;
+                loaded = true;
+            }
+        }
+    }
+
+    /**
+     * Folds in ledger lines (see MarketplaceServer.ClientHandler#transactionLine)
+     * whose batch just committed. Call it holding the balances lock the
+     * batch was committed under.
+     */
+    public static synchronized void recorded(List<String> ledgerLines) {
+        // until the totals are built, the log has these too
+        if (!loaded) return;
+        for (String line : ledgerLines) {
+            String[] parts = line.split("\\|");
+            if (parts.length < 4) continue;
+            long cents;
+            long millis = 0;
+            try {
+                cents = Math.round(Double.parseDouble(parts[2]) * 100);
+                if (parts.length >= 5) millis = Long.parseLong(parts[4].trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            foldedAhead++;
+            if (parts[3].startsWith(PURCHASE_PREFIX)) {
+                add(parts[1], parts[3].substring(PURCHASE_PREFIX.length()), cents, millis);
+            }
+        }
+    }
+
+    private static void add(String seller, String product, long cents, long millis) {
+        long day = millis > 0 ? localDay(millis) : -1;
+        SELLERS.computeIfAbsent(seller, k -> new SellerStats()).add(product, cents, day);
+    }
+
+    /**
+     * @return the seller's dashboard, one line per entry
+     */
+    public static List<String> dashboard(String seller) throws IOException {
+        update();
+        List<String> lines = new ArrayList<>();
+        synchronized (SalesAnalytics.class) {
+            SellerStats stats = SELLERS.get(seller);
+            if (stats == null) {
+                lines.add("No sales yet.");
+                return lines;
+            }
+            long today = localDay(System.currentTimeMillis());
+            long[] day = stats.lastDays(today, 1);
+            long[] week = stats.lastDays(today, 7);
+            long[] month = stats.lastDays(today, DAYS);
+            lines.add("Total: " + stats.orders + " orders, " + money(stats.revenueCents));
+            lines.add("Today: " + day[0] + " orders, " + money(day[1]));
+            lines.add("Last 7 days: " + week[0] + " orders, " + money(week[1]));
+            lines.add("Last " + DAYS + " days: " + month[0] + " orders, " + money(month[1]));
+            lines.add("Revenue by day:");
+            for (long d = today - 6; d <= today; d++) {
+                long[] sum = stats.lastDays(d, 1);
+                lines.add("  " + LocalDate.ofEpochDay(d) + ": " + money(sum[1]) + " (" + sum[0] + " orders)");
+            }
+
+            List<Map.Entry<String, long[]>> products = new ArrayList<>(stats.products.entrySet());
+            products.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+            lines.add("Top products:");
+            for (int i = 0; i < Math.min(TOP_PRODUCTS, products.size()); i++) {
+                Map.Entry<String, long[]> p = products.get(i);
+                lines.add("  " + (i + 1) + ". " + p.getKey() + " - " + p.getValue()[0] + " sold, "
+                        + money(p.getValue()[1]));
+            }
+        }
+        return lines;
+    }
+
+    private static String productOf(int noteId) {
+        String product = PRODUCT_OF_NOTE.get(noteId);
+        if (product == null) {
+            String note = TransactionLog.name(noteId);
+            product = note.startsWith(PURCHASE_PREFIX) ? note.substring(PURCHASE_PREFIX.length()) : "";
+            PRODUCT_OF_NOTE.put(noteId, product);
+        }
+        return product;
+    }
+
+    private static long localDay(long millis) {
+        return Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), DAY_MILLIS);
+    }
+
+    private static String money(long cents) {
+        return String.format("$%.2f", cents / 100.0);
+    }
+}
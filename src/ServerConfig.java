@@ -0,0 +1,270 @@
+package src;
+
+import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Server settings from server.properties in the working directory, in the
+ * same properties format ConfigManager uses for the client. Anything not in
+ * the file keeps its default. The file is watched while the server runs:
+ * changes to settings that are safe to switch live (rate limits, timeouts,
+ * buffer sizes, the sorted-view cache) apply right away, while ports, thread pools and
+ * durability only change on restart.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class ServerConfig {
+    public static final String CONFIG_FILE = "server.properties";
+
+    // every setting and its default, in the order the template lists them
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+    private static final Set<String> RESTART_ONLY = new LinkedHashSet<>(Arrays.asList(
+            "server_port", "image_port", "http_port", "http_threads", "scan_threads", "wal_sync",
+            "checkpoint_seconds"));
+    private static final Set<String> CHOICES_WAL_SYNC = new LinkedHashSet<>(Arrays.asList("commit", "checkpoint"));
+    // lowest and highest value of each numeric setting
+    private static final Map<String, double[]> RANGES = new LinkedHashMap<>();
+    // settings that may have a fraction; the rest must be whole numbers
+    private static final Set<String> DECIMALS = new LinkedHashSet<>();
+    private static final Properties values = new Properties();
+    // the file as last read, so a reload only reports what changed since
+    private static Properties lastRead = new Properties();
+    private static Thread watcher;
+
+    static {
+        DEFAULTS.put("server_port", String.valueOf(MarketplaceServerInterface.SERVER_PORT));
+        DEFAULTS.put("image_port", String.valueOf(MarketplaceServerInterface.IMAGE_PORT));
+        DEFAULTS.put("http_port", String.valueOf(MarketplaceServerInterface.HTTP_PORT));
+        // 0 means one (virtual) thread per request
+        DEFAULTS.put("http_threads", "0");
+        // 0 means one per core, less one
+        DEFAULTS.put("scan_threads", "0");
+        // commit: every change is forced to disk before it is acknowledged;
+        // checkpoint: forced every checkpoint, so a power cut can lose the last few seconds
+        DEFAULTS.put("wal_sync", "commit");
+        DEFAULTS.put("checkpoint_seconds", "30");
+        DEFAULTS.put("session_idle_minutes", "30");
+        DEFAULTS.put("image_read_timeout_seconds", "30");
+        DEFAULTS.put("image_max_minutes", "10");
+        DEFAULTS.put("drain_seconds", "20");
+        // 0 means twice the cores, at least 8
+        DEFAULTS.put("max_busy_sessions", "0");
+        DEFAULTS.put("max_latency_millis", "250");
+        for (RateLimiter.Op op : RateLimiter.Op.values()) {
+            String name = op.name().toLowerCase();
+            DEFAULTS.put("rate_" + name + "_per_second", String.valueOf(op.perSecond));
+            DEFAULTS.put("rate_" + name + "_burst", String.valueOf(op.burst));
+        }
+        DEFAULTS.put("page_size", String.valueOf(MarketplaceServer.PAGE_SIZE));
+        DEFAULTS.put("max_bulk_import", String.valueOf(MarketplaceServer.MAX_BULK_IMPORT));
+        DEFAULTS.put("max_image_mb", String.valueOf(ImageTransfer.MAX_IMAGE_BYTES / (1024 * 1024)));
+        DEFAULTS.put("image_buffer_kb", "64");
+        DEFAULTS.put("http_buffer_kb", "64");
+        DEFAULTS.put("request_log_keep", String.valueOf(RequestLog.KEEP));
+        // sorted browse results kept, one per seller and sort order plus the whole marketplace's
+        DEFAULTS.put("sorted_view_cache", String.valueOf(ProductCatalog.VIEW_CACHE));
+        DEFAULTS.put("replication_backlog_mb", String.valueOf(Replication.BACKLOG_BYTES / (1024 * 1024)));
+        DEFAULTS.put("replication_queue_mb", String.valueOf(Replication.MAX_QUEUED_BYTES / (1024 * 1024)));
+        // hosts allowed to replicate from this server, comma separated; this machine always may
+        DEFAULTS.put("replica_hosts", "");
+
+        range("server_port", 1, 65535);
+        range("image_port", 1, 65535);
+        range("http_port", 1, 65535);
+        range("http_threads", 0, 4096);
+        range("scan_threads", 0, 4096);
+        range("checkpoint_seconds", 1, 24 * 60 * 60);
+        range("session_idle_minutes", 1, 7 * 24 * 60);
+        range("image_read_timeout_seconds", 1, 60 * 60);
+        range("image_max_minutes", 1, 24 * 60);
+        range("drain_seconds", 0, 60 * 60);
+        range("max_busy_sessions", 0, 1000000);
+        range("max_latency_millis", 1, 60000);
+        for (RateLimiter.Op op : RateLimiter.Op.values()) {
+            String name = op.name().toLowerCase();
+            range("rate_" + name + "_per_second", 0.001, 1000000);
+            DECIMALS.add("rate_" + name + "_per_second");
+            range("rate_" + name + "_burst", 1, 1000000);
+        }
+        range("page_size", 1, 1000);
+        range("max_bulk_import", 1, 1000000);
+        range("max_image_mb", 1, 1024);
+        range("image_buffer_kb", 1, 65536);
+        range("http_buffer_kb", 1, 65536);
+        range("request_log_keep", 1, 10000000);
+        range("sorted_view_cache", 1, 1000000);
+        range("replication_backlog_mb", 1, 65536);
+        range("replication_queue_mb", 1, 65536);
+    }
+
+    private static void range(String key, double min, double max) {
+        RANGES.put(key, new double[]{min, max});
+    }
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Reads the settings file, writing a template with every setting
+     * commented out if there isn't one.
+     */
+    public static synchronized void load() {
+        File file = new File(CONFIG_FILE);
+        if (!file.exists()) {
+            writeTemplate(file);
+            return;
+        }
+        Properties read = read(file);
+        if (read == null) return;
+        lastRead = read;
+        values.clear();
+        for (String key : read.stringPropertyNames()) {
+            String value = read.getProperty(key).trim();
+            if (!DEFAULTS.containsKey(key)) {
+                System.err.println("Unknown setting in " + CONFIG_FILE + ": " + key);
+            } else if (!valid(key, value)) {
+                System.err.println("Invalid value for " + key + ": " + value + ", using " + DEFAULTS.get(key));
+            } else {
+                values.setProperty(key, value);
+            }
+        }
+    }
+
+    /**
+     * Re-reads the file and applies the changed settings that are safe to
+     * change live; the others are reported and wait for a restart.
+     */
+    public static synchronized void reload() {
+        Properties read = read(new File(CONFIG_FILE));
+        if (read == null) return;
+        List<String> applied = new ArrayList<>();
+        List<String> pending = new ArrayList<>();
+        for (String key : DEFAULTS.keySet()) {
+            String before = lastRead.getProperty(key) == null ? null : lastRead.getProperty(key).trim();
+            String after = read.getProperty(key) == null ? null : read.getProperty(key).trim();
+            if (after == null ? before == null : after.equals(before)) continue;
+            if (after != null && !valid(key, after)) {
+                System.err.println("Invalid value for " + key + ": " + after + ", keeping " + get(key));
+            } else if (RESTART_ONLY.contains(key)) {
+                pending.add(key);
+            } else {
+                if (after == null) {
+                    values.remove(key);
+                } else {
+                    values.setProperty(key, after);
+                }
+                applied.add(key + "=" + get(key));
+            }
+        }
+        lastRead = read;
+        if (!applied.isEmpty()) {
+            System.out.println("Settings reloaded: " + String.join(", ", applied));
+        }
+        if (!pending.isEmpty()) {
+            System.out.println("Settings that apply after a restart: " + String.join(", ", pending));
+        }
+    }
+
+    /**
+     * Watches the settings file and reloads it when it changes.
+     */
+    public static synchronized void startWatching() throws IOException {
+        if (watcher != null) return;
+        Path dir = Paths.get("").toAbsolutePath();
+        WatchService service = FileSystems.getDefault().newWatchService();
+        dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = service.take();
+                    // editors often save in more than one write
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= CONFIG_FILE.equals(String.valueOf(event.context()));
+                }
+                if (changed) {
+                    reload();
+                }
+                if (!key.reset()) return;
+            }
+        }, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Properties is synchronized itself, and this is on every request
+    public static String get(String key) {
+        String value = values.getProperty(key);
+        return value != null ? value : DEFAULTS.get(key);
+    }
+
+    public static int getInt(String key) {
+        return (int) getLong(key);
+    }
+
+    public static long getLong(String key) {
+        return (long) getDouble(key);
+    }
+
+    public static double getDouble(String key) {
+        return Double.parseDouble(get(key));
+    }
+
+    // numbers must be in their setting's range, and whole unless it's a rate
+    static boolean valid(String key, String value) {
+        if (key.equals("wal_sync")) return CHOICES_WAL_SYNC.contains(value);
+        if (key.equals("replica_hosts")) return value.matches("([\\w.:-]+(,\\s*[\\w.:-]+)*)?");
+        double[] range = RANGES.get(key);
+        if (range == null) return false;
+        try {
+            double number = DECIMALS.contains(key) ? Double.parseDouble(value) : Long.parseLong(value);
+            return number >= range[0] && number <= range[1];
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static Properties read(File file) {
+        Properties read = new Properties();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            read.load(fis);
+            return read;
+        } catch (IOException e) {
+            System.err.println("Could not read " + CONFIG_FILE + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeTemplate(File file) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println("# Marketplace server settings. Uncomment a line to change it.");
+            out.println("# Changes apply while the server runs, except for: " + String.join(", ", RESTART_ONLY));
+            for (Map.Entry<String, String> e : DEFAULTS.entrySet()) {
+                out.println("#" + e.getKey() + "=" + e.getValue());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write " + CONFIG_FILE + ": " + e.getMessage());
+        }
+    }
+}
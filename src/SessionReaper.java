@@ -0,0 +1,169 @@
+package src;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Keeps abandoned connections from holding threads and sockets forever.
+ * Every session and image connection is registered here with TCP keepalive
+ * and a read timeout, and a sweep closes sessions nobody has sent a line on
+ * for session_idle_minutes and image transfers older than image_max_minutes
+ * (see ServerConfig).
+ * Closing the socket also frees a thread stuck writing to a client that
+ * stopped reading, which a read timeout alone can't.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class SessionReaper {
+    public static final long SWEEP_MILLIS = 60 * 1000L;
+
+    public enum Kind {
+        SESSION, IMAGE
+    }
+
+    private static class Tracked {
+        final Socket socket;
+        final Kind kind;
+        final long opened = System.currentTimeMillis();
+        // millis of the last line from the client, for sessions
+        final LongSupplier lastActive;
+
+        Tracked(Socket socket, Kind kind, LongSupplier lastActive) {
+            this.socket = socket;
+            this.kind = kind;
+            this.lastActive = lastActive;
+        }
+
+        boolean expired(long now) {
+            if (kind == Kind.SESSION) {
+                return now - lastActive.getAsLong() > sessionIdleMillis();
+            }
+            return now - opened > ServerConfig.getLong("image_max_minutes") * 60 * 1000L;
+        }
+    }
+
+    private static final Map<Socket, Tracked> OPEN = new ConcurrentHashMap<>();
+    private static final AtomicLong RECLAIMED = new AtomicLong();
+    private static ScheduledExecutorService sweeper;
+
+    private SessionReaper() {
+    }
+
+    public static synchronized void start() {
+        if (sweeper != null) return;
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(() -> sweep(System.currentTimeMillis()),
+                SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Sets keepalive and the read timeout for the kind of connection and
+     * starts watching it.
+     *
+     * @param lastActive when the client last sent something; only used for sessions
+     */
+    public static void track(Socket socket, Kind kind, LongSupplier lastActive) throws SocketException {
+        socket.setKeepAlive(true);
+        socket.setSoTimeout(kind == Kind.SESSION ? (int) sessionIdleMillis()
+                : ServerConfig.getInt("image_read_timeout_seconds") * 1000);
+        OPEN.put(socket, new Tracked(socket, kind, lastActive));
+    }
+
+    static long sessionIdleMillis() {
+        return ServerConfig.getLong("session_idle_minutes") * 60 * 1000L;
+    }
+
+    /**
+     * Counts a session its own read timeout ended as reclaimed, unless a
+     * sweep already closed and counted it.
+     */
+    public static void timedOut(Socket socket) {
+        if (OPEN.remove(socket) != null) {
+            System.out.println("Closed idle session (" + RECLAIMED.incrementAndGet() + " reclaimed since startup)");
+        }
+    }
+
+    public static void untrack(Socket socket) {
+        OPEN.remove(socket);
+    }
+
+    /**
+     * Closes every expired connection.
+     *
+     * @return how many were closed
+     */
+    static int sweep(long now) {
+        int closed = 0;
+        for (Tracked t : OPEN.values()) {
+            if (!t.expired(now)) continue;
+            OPEN.remove(t.socket);
+            try {
+                t.socket.close();
+            } catch (IOException e) {
+                // closed either way
+            }
+            closed++;
+        }
+        if (closed > 0) {
+            System.out.println("Closed " + closed + " idle connections (" + RECLAIMED.addAndGet(closed)
+                    + " reclaimed since startup)");
+        }
+        return closed;
+    }
+
+    /**
+     * Closes every tracked connection, for shutdown.
+     *
+     * @return how many were open
+     */
+    public static int closeAll() {
+        int closed = 0;
+        for (Tracked t : OPEN.values()) {
+            OPEN.remove(t.socket);
+            try {
+                t.socket.close();
+            } catch (IOException e) {
+                // closed either way
+            }
+            closed++;
+        }
+        return closed;
+    }
+
+    /**
+     * @return {open sessions, open image connections, reclaimed since startup}
+     */
+    public static long[] stats() {
+        long sessions = 0;
+        long images = 0;
+        for (Tracked t : OPEN.values()) {
+            if (t.kind == Kind.SESSION) {
+                sessions++;
+            } else {
+                images++;
+            }
+        }
+        return new long[] {sessions, images, RECLAIMED.get()};
+    }
+}
@@ -0,0 +1,374 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Binary, memory-mapped copy of transactions.txt for history queries and
+ * reports. transactions.txt stays the file of record (the write-ahead log
+ * appends to it); this class keeps transactions.bin caught up with it by
+ * decoding only the text added since the last call.
+ *
+ * transactions.bin is a 32 byte header (magic, version, bytes of the text
+ * consumed, record count) followed by fixed 32 byte records: int from,
+ * int to, long cents, long millis, int note, int unused. Users and notes
+ * are ids into transactions.dict, one string per line. Scans read fields
+ * straight out of the mapping with absolute gets - no Strings, no
+ * per-record allocation - and split the records into segments that are
+ * scanned in parallel. The file is mapped in pieces, and the text is
+ * decoded in chunks, so neither is limited to 2GB.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class TransactionLog {
+    static final File BINARY_FILE = new File("transactions.bin");
+    static final File DICT_FILE = new File("transactions.dict");
+    public static final int RECORD_BYTES = 32;
+    private static final int HEADER_BYTES = 32;
+    private static final int MAGIC = 0x4D4B5458;
+    private static final int VERSION = 1;
+    private static final int SEGMENT_RECORDS = 1 << 16;
+    // records per mapping (128MB); a multiple of SEGMENT_RECORDS so a scan segment never spans two
+    private static final int MAP_RECORDS = 1 << 22;
+    // text decoded per step of a catch-up
+    private static final int CHUNK_BYTES = 4 << 20;
+
+    private static final List<String> NAMES = new ArrayList<>();
+    private static final Map<String, Integer> IDS = new HashMap<>();
+    private static long textConsumed = -1;
+    private static long recordCount = 0;
+    // the mappings, and how many records each held when it was mapped
+    private static final List<MappedByteBuffer> PIECES = new ArrayList<>();
+    private static final List<Integer> PIECE_COUNTS = new ArrayList<>();
+
+    private TransactionLog() {
+    }
+
+    /**
+     * The records as of the last catch-up. They are mapped in pieces of
+     * MAP_RECORDS, because one mapping can't pass 2GB (about 67 million
+     * records). Fields are read with absolute gets by record index.
+     */
+    public static class Records {
+        private final ByteBuffer[] pieces;
+        private final long count;
+
+        Records(ByteBuffer[] pieces, long count) {
+            this.pieces = pieces;
+            this.count = count;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public int from(long index) {
+            return piece(index).getInt(offset(index));
+        }
+
+        public int to(long index) {
+            return piece(index).getInt(offset(index) + 4);
+        }
+
+        public long cents(long index) {
+            return piece(index).getLong(offset(index) + 8);
+        }
+
+        public long millis(long index) {
+            return piece(index).getLong(offset(index) + 16);
+        }
+
+        public int note(long index) {
+            return piece(index).getInt(offset(index) + 24);
+        }
+
+        private ByteBuffer piece(long index) {
+            return pieces[(int) (index / MAP_RECORDS)];
+        }
+
+        private static int offset(long index) {
+            return (int) (index % MAP_RECORDS) * RECORD_BYTES;
+        }
+    }
+
+    /**
+     * Visits one record; read its fields from records by index.
+     */
+    public interface RecordVisitor<A> {
+        void visit(A acc, Records records, long index);
+    }
+
+    public static synchronized String name(int id) {
+        return id >= 0 && id < NAMES.size() ? NAMES.get(id) : "?";
+    }
+
+    /**
+     * @return the id of a user or note, or -1 if no transaction mentions it
+     */
+    public static synchronized int idOf(String name) throws IOException {
+        catchUp();
+        Integer id = IDS.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Runs visitor over every record, one accumulator per segment, with the
+     * segments scanned in parallel and combined in log order.
+     */
+    public static <A> A scan(Supplier<A> init, RecordVisitor<A> visitor, BinaryOperator<A> combine) throws IOException {
+        Records records;
+        synchronized (TransactionLog.class) {
+            catchUp();
+            records = map();
+        }
+        long count = records.count();
+        int segments = (int) ((count + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+        if (segments == 0) return init.get();
+        return IntStream.range(0, segments).parallel().mapToObj(seg -> {
+            A acc = init.get();
+            long end = Math.min(count, (long) (seg + 1) * SEGMENT_RECORDS);
+            for (long r = (long) seg * SEGMENT_RECORDS; r < end; r++) {
+                visitor.visit(acc, records, r);
+            }
+            return acc;
+        }).reduce(combine).get();
+    }
+
+    /**
+     * Indexes of the user's records, oldest first.
+     */
+    public static List<Long> recordsFor(String user) throws IOException {
+        int id = idOf(user);
+        if (id < 0) return new ArrayList<>();
+        return scan(ArrayList::new, (List<Long> acc, Records b, long r) -> {
+            if (b.from(r) == id || b.to(r) == id) acc.add(r);
+        }, (a, b) -> {
+            a.addAll(b);
+            return a;
+        });
+    }
+
+    /**
+     * {count, cents received, cents paid} for a user in one pass.
+     */
+    public static long[] totalsFor(String user) throws IOException {
+        int id = idOf(user);
+        if (id < 0) return new long[3];
+        return scan(() -> new long[3], (long[] acc, Records b, long r) -> {
+            boolean in = b.to(r) == id;
+            boolean out = b.from(r) == id;
+            if (in || out) acc[0]++;
+            if (in) acc[1] += b.cents(r);
+            if (out) acc[2] += b.cents(r);
+        }, (a, b) -> {
+            a[0] += b[0];
+            a[1] += b[1];
+            a[2] += b[2];
+            return a;
+        });
+    }
+
+    /**
+     * The mapped records, up to the count at the time of this catch-up.
+     */
+    public static synchronized Records records() throws IOException {
+        catchUp();
+        return map();
+    }
+
+    // full pieces are mapped once; only the last, growing one is mapped again
+    private static Records map() throws IOException {
+        int pieces = (int) ((recordCount + MAP_RECORDS - 1) / MAP_RECORDS);
+        while (PIECES.size() > pieces) {
+            PIECES.remove(PIECES.size() - 1);
+            PIECE_COUNTS.remove(PIECE_COUNTS.size() - 1);
+        }
+        if (pieces > 0) {
+            try (FileChannel channel = FileChannel.open(BINARY_FILE.toPath(), StandardOpenOption.READ)) {
+                for (int k = 0; k < pieces; k++) {
+                    int count = (int) Math.min(MAP_RECORDS, recordCount - (long) k * MAP_RECORDS);
+                    if (k < PIECES.size() && PIECE_COUNTS.get(k) == count) continue;
+                    MappedByteBuffer piece = channel.map(FileChannel.MapMode.READ_ONLY,
+                            HEADER_BYTES + (long) k * MAP_RECORDS * RECORD_BYTES, (long) count * RECORD_BYTES);
+                    piece.order(ByteOrder.BIG_ENDIAN);
+                    if (k < PIECES.size()) {
+                        PIECES.set(k, piece);
+                        PIECE_COUNTS.set(k, count);
+                    } else {
+                        PIECES.add(piece);
+                        PIECE_COUNTS.add(count);
+                    }
+                }
+            }
+        }
+        return new Records(PIECES.toArray(new ByteBuffer[0]), recordCount);
+    }
+
+    /**
+     * Decodes the text lines added to transactions.txt since the last call
+     * and appends them to transactions.bin, CHUNK_BYTES of text at a time.
+     * Rebuilds from scratch if the text file got shorter than what was
+     * consumed (it was replaced).
+     */
+    static synchronized void catchUp() throws IOException {
+        if (textConsumed < 0) open();
+        File text = new File(MarketplaceServerInterface.TRANSACTIONS_FILE);
+        long length = text.length();
+        if (length < textConsumed) {
+            rebuild();
+            length = text.length();
+        }
+        if (length == textConsumed) return;
+
+        try (RandomAccessFile raf = new RandomAccessFile(text, "r")) {
+            int chunkBytes = CHUNK_BYTES;
+            while (textConsumed < length) {
+                byte[] chunk = new byte[(int) Math.min(chunkBytes, length - textConsumed)];
+                raf.seek(textConsumed);
+                raf.readFully(chunk);
+                if (decode(chunk)) {
+                    chunkBytes = CHUNK_BYTES;
+                } else if (textConsumed + chunk.length < length) {
+                    // one line longer than the chunk
+                    chunkBytes *= 2;
+                } else {
+                    // the last line is still being written; it is read next time
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the complete lines at the start of chunk and appends them.
+     *
+     * @return false if the chunk holds no complete line
+     */
+    private static boolean decode(byte[] chunk) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        List<String> newNames = new ArrayList<>();
+        int consumed = 0;
+        long added = 0;
+        int lineStart = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            if (chunk[i] != '\n') continue;
+            String line = new String(chunk, lineStart, i - lineStart, StandardCharsets.UTF_8).trim();
+            lineStart = i + 1;
+            consumed = lineStart;
+            String[] parts = line.split("\\|");
+            if (parts.length < 4) continue;
+            long cents;
+            long millis = 0;
+            try {
+                cents = Math.round(Double.parseDouble(parts[2]) * 100);
+                if (parts.length >= 5) millis = Long.parseLong(parts[4].trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            recordOut.writeInt(intern(parts[0], newNames));
+            recordOut.writeInt(intern(parts[1], newNames));
+            recordOut.writeLong(cents);
+            recordOut.writeLong(millis);
+            recordOut.writeInt(intern(parts[3], newNames));
+            recordOut.writeInt(0);
+            added++;
+        }
+        if (consumed == 0) return false;
+
+        // dictionary first and forced, so a crash never leaves records pointing at missing names
+        if (!newNames.isEmpty()) {
+            try (FileOutputStream fos = new FileOutputStream(DICT_FILE, true);
+                 Writer w = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+                for (String name : newNames) {
+                    w.write(name);
+                    w.write('\n');
+                }
+                w.flush();
+                fos.getChannel().force(false);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(BINARY_FILE.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(records.toByteArray()), HEADER_BYTES + recordCount * RECORD_BYTES);
+            channel.force(false);
+            recordCount += added;
+            textConsumed += consumed;
+            channel.write(header(), 0);
+        }
+        return true;
+    }
+
+    private static int intern(String name, List<String> newNames) {
+        Integer id = IDS.get(name);
+        if (id == null) {
+            id = NAMES.size();
+            NAMES.add(name);
+            IDS.put(name, id);
+            newNames.add(name);
+        }
+        return id;
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES);
+        h.putInt(MAGIC).putInt(VERSION).putLong(textConsumed).putLong(recordCount);
+        // the whole header, padding included
+        h.rewind();
+        return h;
+    }
+
+    private static void open() throws IOException {
+        NAMES.clear();
+        IDS.clear();
+        if (BINARY_FILE.length() >= HEADER_BYTES && DICT_FILE.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(BINARY_FILE))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    long consumed = in.readLong();
+                    long count = in.readLong();
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            new FileInputStream(DICT_FILE), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            IDS.put(line, NAMES.size());
+                            NAMES.add(line);
+                        }
+                    }
+                    if (BINARY_FILE.length() >= HEADER_BYTES + count * RECORD_BYTES) {
+                        textConsumed = consumed;
+                        recordCount = count;
+                        return;
+                    }
+                }
+            }
+        }
+        rebuild();
+    }
+
+    private static void rebuild() throws IOException {
+        NAMES.clear();
+        IDS.clear();
+        textConsumed = 0;
+        recordCount = 0;
+        PIECES.clear();
+        PIECE_COUNTS.clear();
+        new FileOutputStream(DICT_FILE).close();
+        try (FileChannel channel = FileChannel.open(BINARY_FILE.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header(), 0);
+        }
+    }
+}
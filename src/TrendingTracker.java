@@ -0,0 +1,180 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Top-K trending items over sliding windows, in bounded memory. Each window
+ * is split into buckets, and each bucket counts events in a Count-Min
+ * sketch, so an item's count over the window is the sum of its estimates in
+ * the live buckets; the oldest bucket is cleared as time moves past it. A
+ * small min-heap per window keeps the likely heavy hitters, which are
+ * re-estimated when the top list is read.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class TrendingTracker {
+    public static final TrendingTracker PURCHASES = new TrendingTracker();
+    public static final TrendingTracker SEARCHES = new TrendingTracker();
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1 << 11;
+    private static final int CANDIDATES = 64;
+
+    /**
+     * One sliding window, e.g. the last hour in 12 five-minute buckets.
+     */
+    public enum Span {
+        HOUR("last hour", 1, 12),
+        DAY("last 24 hours", 24, 24),
+        WEEK("last 7 days", 7 * 24, 28);
+
+        public final String label;
+        final long bucketMillis;
+        final int buckets;
+
+        Span(String label, int hours, int buckets) {
+            this.label = label;
+            this.bucketMillis = hours * 60 * 60 * 1000L / buckets;
+            this.buckets = buckets;
+        }
+    }
+
+    private static class Candidate {
+        final String key;
+        long count;
+
+        Candidate(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    private static class Window {
+        final Span span;
+        // buckets[b][row * SKETCH_WIDTH + column]
+        final int[][] buckets;
+        // which bucket number (time / bucketMillis) each slot currently holds
+        final long[] bucketNumber;
+        final Map<String, Candidate> candidates = new HashMap<>();
+        final PriorityQueue<Candidate> smallest = new PriorityQueue<>((a, b) -> Long.compare(a.count, b.count));
+
+        Window(Span span) {
+            this.span = span;
+            this.buckets = new int[span.buckets][SKETCH_DEPTH * SKETCH_WIDTH];
+            this.bucketNumber = new long[span.buckets];
+            Arrays.fill(bucketNumber, -1);
+        }
+
+        int[] bucketFor(long now) {
+            long number = now / span.bucketMillis;
+            int slot = (int) (number % span.buckets);
+            if (bucketNumber[slot] != number) {
+                Arrays.fill(buckets[slot], 0);
+                bucketNumber[slot] = number;
+            }
+            return buckets[slot];
+        }
+
+        void add(String key, int hash, long now) {
+            int[] sketch = bucketFor(now);
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                sketch[row * SKETCH_WIDTH + column(hash, row)]++;
+            }
+            long count = estimate(hash, now);
+
+            Candidate c = candidates.get(key);
+            if (c != null) {
+                smallest.remove(c);
+                c.count = count;
+                smallest.add(c);
+            } else if (candidates.size() < CANDIDATES) {
+                c = new Candidate(key, count);
+                candidates.put(key, c);
+                smallest.add(c);
+            } else if (smallest.peek().count < count) {
+                candidates.remove(smallest.poll().key);
+                c = new Candidate(key, count);
+                candidates.put(key, c);
+                smallest.add(c);
+            }
+        }
+
+        // Count-Min: the smallest row total, summed over the buckets still in the window
+        long estimate(int hash, long now) {
+            long oldest = now / span.bucketMillis - span.buckets + 1;
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                int index = row * SKETCH_WIDTH + column(hash, row);
+                long sum = 0;
+                for (int b = 0; b < span.buckets; b++) {
+                    if (bucketNumber[b] >= oldest) sum += buckets[b][index];
+                }
+                min = Math.min(min, sum);
+            }
+            return min;
+        }
+
+        List<String> top(int k, long now) {
+            smallest.clear();
+            List<Candidate> ranked = new ArrayList<>();
+            for (Candidate c : candidates.values()) {
+                c.count = estimate(hash(c.key), now);
+                smallest.add(c);
+                if (c.count > 0) ranked.add(c);
+            }
+            ranked.sort((a, b) -> Long.compare(b.count, a.count));
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < Math.min(k, ranked.size()); i++) {
+                lines.add(ranked.get(i).key + " (" + ranked.get(i).count + ")");
+            }
+            return lines;
+        }
+    }
+
+    private final Window[] windows = new Window[Span.values().length];
+
+    public TrendingTracker() {
+        for (Span span : Span.values()) {
+            windows[span.ordinal()] = new Window(span);
+        }
+    }
+
+    public void record(String key) {
+        record(key, System.currentTimeMillis());
+    }
+
+    public synchronized void record(String key, long now) {
+        int hash = hash(key);
+        for (Window w : windows) {
+            w.add(key, hash, now);
+        }
+    }
+
+    /**
+     * @return up to k "item (count)" lines, most frequent first
+     */
+    public List<String> top(Span span, int k) {
+        return top(span, k, System.currentTimeMillis());
+    }
+
+    synchronized List<String> top(Span span, int k, long now) {
+        return windows[span.ordinal()].top(k, now);
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int column(int hash, int row) {
+        int h = hash * (2 * row + 0x27D4EB2F);
+        return (h ^ (h >>> 15)) & (SKETCH_WIDTH - 1);
+    }
+}
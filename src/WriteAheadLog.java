@@ -0,0 +1,663 @@
+package src;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * PHASE 3 PROJECT MARKETPLACE
+ * Write-ahead log for the server's text files. A change is a batch of file
+ * operations (set or remove a key:value line, append to an append-only file,
+ * add or drop product lines by id, set the stock of product lines, replace
+ * a small file's lines, delete a file). The batch is written to
+ * the log as one checksummed record and forced to disk before any file is
+ * touched, so after a crash every batch is either replayed in full or never
+ * happened - a purchase can't debit the buyer without crediting the seller.
+ *
+ * Every operation can be applied twice safely, which is all recovery needs:
+ * it replays the records written since the last checkpoint. Appends
+ * remember the file length they started at, and product lines carry their
+ * id, so a replay can tell what already made it to disk. A checkpoint
+ * forces the appended files to disk and empties the log, so recovery time
+ * depends on how often checkpoints run, not on how much data there is.
+ * Sold stock is logged in the same batch as the payment for it, as the
+ * stock left afterwards rather than the amount taken, so replaying it twice
+ * can't take it twice.
+ *
+ * Only writing the record takes the log's lock. The files are updated
+ * after it is released, under a lock per file (striped by path) that is
+ * taken before the record is written, so batches on the same file still
+ * apply in log order while batches for different sellers' files apply in
+ * parallel. Anything that reads the files as of the log (checkpoints,
+ * replication snapshots, compactions) holds the log lock and calls
+ * awaitApplied() first.
+ *
+ * Every record is also handed to Replication, which streams it to replicas;
+ * a replica logs and replays it the same way recovery would.
+ *
+ * Record: int length, payload, long crc32 of the payload.
+ *
+ * @author samridhi
+ * @version 7/5/25
+ */
+public class WriteAheadLog {
+    public static final String LOG_FILE = "marketplace.wal";
+    public static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+    private static final int MAGIC = 0x4D4B574C;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private static final byte SET = 1;
+    private static final byte REMOVE = 2;
+    private static final byte APPEND = 3;
+    private static final byte DELETE = 4;
+    private static final byte ADD_PRODUCTS = 5;
+    private static final byte DROP_PRODUCTS = 6;
+    private static final byte STOCK = 7;
+    private static final byte REWRITE = 8;
+
+    private static final int FILE_STRIPES = 64;
+
+    private static final Object LOCK = new Object();
+    private static final ReentrantLock[] FILE_LOCKS = new ReentrantLock[FILE_STRIPES];
+    private static FileChannel channel;
+    private static long nextSeq = 1;
+    // batches logged but still being applied, and threads waiting for them to finish
+    private static int applying;
+    private static int quiescing;
+    // append-only files written since the last checkpoint, forced when it runs
+    private static final Set<String> UNSYNCED = ConcurrentHashMap.newKeySet();
+
+    static {
+        for (int i = 0; i < FILE_STRIPES; i++) {
+            FILE_LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private WriteAheadLog() {
+    }
+
+    private static class Op {
+        final byte kind;
+        final String path;
+        final String key;
+        final String value;
+        final List<String> lines;
+        long offset;
+
+        Op(byte kind, String path, String key, String value, List<String> lines) {
+            this.kind = kind;
+            this.path = path;
+            this.key = key;
+            this.value = value;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * A group of file operations that are logged and applied together.
+     */
+    public static class Batch {
+        private final List<Op> ops = new ArrayList<>();
+
+        /**
+         * Replaces (or adds) the "key:value" line for key.
+         */
+        public Batch set(String path, String key, String value) {
+            ops.add(new Op(SET, path, key, value, null));
+            return this;
+        }
+
+        /**
+         * Drops every line starting with "key:".
+         */
+        public Batch remove(String path, String key) {
+            ops.add(new Op(REMOVE, path, key, null, null));
+            return this;
+        }
+
+        /**
+         * Appends to a file that is only ever appended to, like the transaction log.
+         */
+        public Batch append(String path, List<String> lines) {
+            ops.add(new Op(APPEND, path, null, null, new ArrayList<>(lines)));
+            return this;
+        }
+
+        public Batch append(String path, String line) {
+            List<String> lines = new ArrayList<>();
+            lines.add(line);
+            return append(path, lines);
+        }
+
+        /**
+         * Appends product file lines; on replay, lines whose id is already there are skipped.
+         */
+        public Batch addProducts(String path, List<String> lines) {
+            ops.add(new Op(ADD_PRODUCTS, path, null, null, new ArrayList<>(lines)));
+            return this;
+        }
+
+        public Batch dropProducts(String path, List<Long> ids) {
+            List<String> lines = new ArrayList<>();
+            for (long id : ids) {
+                lines.add(Long.toString(id));
+            }
+            ops.add(new Op(DROP_PRODUCTS, path, null, null, lines));
+            return this;
+        }
+
+        /**
+         * Takes quantity sold units off a product line's stock. Unlimited
+         * stock stays unlimited.
+         */
+        public Batch sold(String path, long id, int quantity) {
+            // one op per file, so the stock left is worked out from the file once
+            for (Op op : ops) {
+                if (op.kind == STOCK && op.path.equals(path)) {
+                    op.lines.add(id + ":" + quantity);
+                    return this;
+                }
+            }
+            List<String> lines = new ArrayList<>();
+            lines.add(id + ":" + quantity);
+            ops.add(new Op(STOCK, path, null, null, lines));
+            return this;
+        }
+
+        /**
+         * Replaces every line of a file, for trimming a small append-only file.
+         */
+        public Batch rewrite(String path, List<String> lines) {
+            ops.add(new Op(REWRITE, path, null, null, new ArrayList<>(lines)));
+            return this;
+        }
+
+        public Batch delete(String path) {
+            ops.add(new Op(DELETE, path, null, null, null));
+            return this;
+        }
+
+        public void commit() throws IOException {
+            WriteAheadLog.commit(ops);
+        }
+    }
+
+    public static Batch batch() {
+        return new Batch();
+    }
+
+    private static void commit(List<Op> ops) throws IOException {
+        if (ops.isEmpty()) return;
+        if (Thread.holdsLock(LOCK)) {
+            // the caller is reading the files as of the log, so nothing else may touch them
+            awaitApplied();
+            log(ops);
+            for (Op op : ops) {
+                apply(op);
+            }
+            checkpointIfFull();
+            return;
+        }
+        List<ReentrantLock> locks = locksFor(ops);
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            synchronized (LOCK) {
+                while (quiescing > 0) {
+                    waitForLog();
+                }
+                log(ops);
+                applying++;
+            }
+            try {
+                for (Op op : ops) {
+                    apply(op);
+                }
+            } finally {
+                synchronized (LOCK) {
+                    applying--;
+                    LOCK.notifyAll();
+                }
+            }
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+        synchronized (LOCK) {
+            checkpointIfFull();
+        }
+    }
+
+    // caller holds LOCK and the batch's file locks, so the files are up to date with the log
+    private static void log(List<Op> ops) throws IOException {
+        open();
+        for (Op op : ops) {
+            if (op.kind == APPEND) {
+                // where the lines go, so a replay can tell whether they made it
+                op.offset = new File(op.path).length();
+            } else if (op.kind == STOCK) {
+                stockLeft(op);
+            }
+        }
+        byte[] payload = encode(nextSeq++, ops);
+        write(payload);
+        Replication.logged(payload);
+    }
+
+    private static void checkpointIfFull() throws IOException {
+        if (channel != null && channel.size() > CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    // one lock per stripe the batch's files fall in, in stripe order so two batches can't deadlock
+    private static List<ReentrantLock> locksFor(List<Op> ops) {
+        Map<Integer, ReentrantLock> locks = new TreeMap<>();
+        for (Op op : ops) {
+            int stripe = Math.floorMod(new File(op.path).getPath().hashCode(), FILE_STRIPES);
+            locks.put(stripe, FILE_LOCKS[stripe]);
+        }
+        return new ArrayList<>(locks.values());
+    }
+
+    /**
+     * Waits until every batch already in the log has been applied to the
+     * files, holding new ones back meanwhile. Call it holding lock(); until
+     * that is released the files match the log.
+     */
+    static void awaitApplied() throws IOException {
+        synchronized (LOCK) {
+            quiescing++;
+            try {
+                while (applying > 0) {
+                    waitForLog();
+                }
+            } finally {
+                quiescing--;
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    private static void waitForLog() throws IOException {
+        try {
+            LOCK.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the log");
+        }
+    }
+
+    private static void write(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 12);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(payload.length);
+        record.write(payload);
+        record.writeLong(crc.getValue());
+        channel.write(java.nio.ByteBuffer.wrap(bytes.toByteArray()));
+        // wal_sync=checkpoint leaves it to the next checkpoint
+        if (ServerConfig.get("wal_sync").equals("commit")) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Logs and applies a record received from the primary. Records this log
+     * already has are skipped, and applying is the same idempotent replay
+     * recovery uses, so a record delivered twice does no harm.
+     *
+     * @return false if the record was already applied
+     */
+    static boolean applyReplicated(byte[] payload) throws IOException {
+        synchronized (LOCK) {
+            long seq = new DataInputStream(new ByteArrayInputStream(payload)).readLong();
+            if (seq < nextSeq) return false;
+            open();
+            write(payload);
+            for (Op op : decode(payload)) {
+                replay(op);
+            }
+            if (channel.size() > CHECKPOINT_BYTES) {
+                checkpoint();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sequence number of the last batch logged (or replicated) here.
+     */
+    public static long lastSeq() {
+        synchronized (LOCK) {
+            return nextSeq - 1;
+        }
+    }
+
+    /**
+     * After a replica installs a snapshot taken at seq: continue numbering
+     * from there with an empty log.
+     */
+    static void resetTo(long seq) throws IOException {
+        synchronized (LOCK) {
+            nextSeq = seq + 1;
+            checkpoint();
+        }
+    }
+
+    // held while Replication reads a consistent snapshot of the files, after awaitApplied()
+    static Object lock() {
+        return LOCK;
+    }
+
+    /**
+     * Forces appended files to disk and starts a fresh, empty log.
+     */
+    public static void checkpoint() throws IOException {
+        synchronized (LOCK) {
+            // a batch still being applied must stay in the log until it is
+            awaitApplied();
+            for (String path : UNSYNCED) {
+                File f = new File(path);
+                if (f.exists()) {
+                    try (FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                        c.force(true);
+                    }
+                }
+            }
+            UNSYNCED.clear();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            File log = new File(LOG_FILE);
+            File temp = new File(LOG_FILE + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(fos)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(nextSeq);
+                out.flush();
+                fos.getFD().sync();
+            }
+            AtomicFiles.move(temp.toPath(), log.toPath());
+        }
+    }
+
+    /**
+     * Replays every intact record written since the last checkpoint, then
+     * checkpoints. A torn record at the end (a crash mid-write) is ignored.
+     *
+     * @return number of batches replayed
+     */
+    public static int recover() throws IOException {
+        synchronized (LOCK) {
+            File log = new File(LOG_FILE);
+            int replayed = 0;
+            if (log.length() >= HEADER_BYTES) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        throw new IOException(LOG_FILE + " is not a marketplace log");
+                    }
+                    nextSeq = in.readLong();
+                    while (true) {
+                        List<Op> ops = readRecord(in);
+                        if (ops == null) break;
+                        for (Op op : ops) {
+                            replay(op);
+                        }
+                        replayed++;
+                    }
+                }
+            }
+            checkpoint();
+            return replayed;
+        }
+    }
+
+    private static List<Op> readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > 64 * 1024 * 1024) return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            long sum = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != sum) return null;
+            return decode(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static List<Op> decode(byte[] payload) throws IOException {
+        DataInputStream p = new DataInputStream(new ByteArrayInputStream(payload));
+        nextSeq = Math.max(nextSeq, p.readLong() + 1);
+        int count = p.readInt();
+        List<Op> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = p.readByte();
+            String path = p.readUTF();
+            if (kind == SET) {
+                ops.add(new Op(kind, path, p.readUTF(), p.readUTF(), null));
+            } else if (kind == REMOVE) {
+                ops.add(new Op(kind, path, p.readUTF(), null, null));
+            } else if (kind == APPEND || kind == ADD_PRODUCTS || kind == DROP_PRODUCTS || kind == STOCK
+                    || kind == REWRITE) {
+                long offset = p.readLong();
+                int n = p.readInt();
+                List<String> lines = new ArrayList<>(n);
+                for (int j = 0; j < n; j++) {
+                    lines.add(p.readUTF());
+                }
+                Op op = new Op(kind, path, null, null, lines);
+                op.offset = offset;
+                ops.add(op);
+            } else {
+                ops.add(new Op(kind, path, null, null, null));
+            }
+        }
+        return ops;
+    }
+
+    private static byte[] encode(long seq, List<Op> ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(seq);
+        out.writeInt(ops.size());
+        for (Op op : ops) {
+            out.writeByte(op.kind);
+            out.writeUTF(op.path);
+            if (op.kind == SET) {
+                out.writeUTF(op.key);
+                out.writeUTF(op.value);
+            } else if (op.kind == REMOVE) {
+                out.writeUTF(op.key);
+            } else if (op.lines != null) {
+                out.writeLong(op.offset);
+                out.writeInt(op.lines.size());
+                for (String line : op.lines) {
+                    out.writeUTF(line);
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void open() throws IOException {
+        if (channel != null) return;
+        File log = new File(LOG_FILE);
+        if (log.length() < HEADER_BYTES) {
+            checkpoint();
+        }
+        channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void apply(Op op) throws IOException {
+        File file = new File(op.path);
+        switch (op.kind) {
+            case SET:
+            case REMOVE:
+                List<String> lines = new ArrayList<>();
+                boolean found = false;
+                if (file.exists()) {
+                    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.startsWith(op.key + ":")) {
+                                if (op.kind == SET && !found) lines.add(op.key + ":" + op.value);
+                                found = true;
+                            } else {
+                                lines.add(line);
+                            }
+                        }
+                    }
+                }
+                if (op.kind == SET && !found) lines.add(op.key + ":" + op.value);
+                if (op.kind == SET || found) AtomicFiles.writeLines(file, lines);
+                break;
+            case APPEND:
+            case ADD_PRODUCTS:
+                appendLines(file, op.lines);
+                break;
+            case DROP_PRODUCTS:
+                Set<Long> drop = new HashSet<>();
+                for (String id : op.lines) {
+                    drop.add(Long.parseLong(id));
+                }
+                List<String> kept = new ArrayList<>();
+                for (String line : readLines(file)) {
+                    if (!drop.contains(idOf(line))) kept.add(line);
+                }
+                AtomicFiles.writeLines(file, kept);
+                break;
+            case STOCK:
+                Map<Long, Integer> stock = new HashMap<>();
+                for (String line : op.lines) {
+                    int colon = line.indexOf(':');
+                    stock.put(Long.parseLong(line.substring(0, colon)), Integer.parseInt(line.substring(colon + 1)));
+                }
+                if (stock.isEmpty()) break;
+                List<String> updated = new ArrayList<>();
+                for (String line : readLines(file)) {
+                    Product p = Product.parse("", line);
+                    Integer left = p == null ? null : stock.get(p.getId());
+                    updated.add(left == null ? line : p.withStock(left).toFileLine());
+                }
+                AtomicFiles.writeLines(file, updated);
+                break;
+            case REWRITE:
+                AtomicFiles.writeLines(file, op.lines);
+                break;
+            case DELETE:
+                file.delete();
+                break;
+            default:
+                throw new IOException("unknown log operation " + op.kind);
+        }
+    }
+
+    private static void replay(Op op) throws IOException {
+        if (op.kind == ADD_PRODUCTS) {
+            Set<Long> present = new HashSet<>();
+            for (String line : readLines(new File(op.path))) {
+                present.add(idOf(line));
+            }
+            List<String> missing = new ArrayList<>();
+            for (String line : op.lines) {
+                if (!present.contains(idOf(line))) missing.add(line);
+            }
+            if (!missing.isEmpty()) appendLines(new File(op.path), missing);
+            return;
+        }
+        if (op.kind != APPEND) {
+            apply(op);
+            return;
+        }
+        File file = new File(op.path);
+        long expected = op.offset + bytesOf(op.lines);
+        if (file.length() >= expected) return;
+        if (file.length() > op.offset) {
+            // the append was torn; cut it off and write it again
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(op.offset);
+            }
+        }
+        apply(op);
+    }
+
+    // turns "id:sold" lines into "id:stock left", reading the stock from the file
+    private static void stockLeft(Op op) throws IOException {
+        Map<Long, Integer> stock = new LinkedHashMap<>();
+        for (String line : readLines(new File(op.path))) {
+            Product p = Product.parse("", line);
+            if (p != null && p.getStock() != Product.UNLIMITED) stock.put(p.getId(), p.getStock());
+        }
+        Map<Long, Integer> left = new LinkedHashMap<>();
+        for (String line : op.lines) {
+            int colon = line.indexOf(':');
+            long id = Long.parseLong(line.substring(0, colon));
+            Integer current = left.containsKey(id) ? left.get(id) : stock.get(id);
+            // a product that's gone or unlimited has nothing to write
+            if (current == null) continue;
+            left.put(id, Math.max(0, current - Integer.parseInt(line.substring(colon + 1))));
+        }
+        op.lines.clear();
+        for (Map.Entry<Long, Integer> e : left.entrySet()) {
+            op.lines.add(e.getKey() + ":" + e.getValue());
+        }
+    }
+
+    private static void appendLines(File file, List<String> lines) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        UNSYNCED.add(file.getPath());
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (!file.exists()) return lines;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    // product lines are name,price,image,id,stock; legacy lines without an id count as 0
+    private static long idOf(String productLine) {
+        Product p = Product.parse("", productLine);
+        return p == null ? -1 : p.getId();
+    }
+
+    private static long bytesOf(List<String> lines) {
+        long n = 0;
+        for (String line : lines) {
+            n += line.getBytes().length + System.lineSeparator().length();
+        }
+        return n;
+    }
+}